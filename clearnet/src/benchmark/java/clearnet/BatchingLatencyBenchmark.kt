@@ -0,0 +1,57 @@
+package clearnet
+
+import clearnet.blocks.GetFromNetBlock
+import clearnet.help.*
+import clearnet.interfaces.IBodyValidator
+import clearnet.interfaces.IInvocationBlock.QueueAlgorithm
+import clearnet.interfaces.ISerializer
+import io.reactivex.schedulers.Schedulers
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+
+/**
+ * Manual benchmark of the latency of sequential interactive requests with different queue algorithms
+ * of the [GetFromNetBlock]. Run it with `gradle :clearnet:benchmark`.
+ */
+object BatchingLatencyBenchmark {
+    private const val REQUESTS = 200
+    private const val NETWORK_DELAY = 5L
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        QueueAlgorithm.values().filter { it != QueueAlgorithm.IMMEDIATE }.forEach {
+            println(String.format("%-15s %s", it, measure(it)))
+        }
+        System.exit(0)
+    }
+
+    private fun measure(queueAlgorithm: QueueAlgorithm): LatencyHistogram {
+        val histogram = LatencyHistogram()
+        val core = Core(
+                ioExecutor = Executors.newCachedThreadPool(),
+                worker = Schedulers.single(),
+                timeTracker = histogram,
+                blocks = *object : TestCoreBlocks() {
+                    override fun createGetFromNetBlock(validator: IBodyValidator, converter: ISerializer) = GetFromNetBlock(validator, converter, queueAlgorithm)
+                }.getAll()
+        )
+        val testRequests = ExecutorWrapper(core, HeadersProviderStub, GsonTestSerializer())
+                .create(TestRequests::class.java, DelayedRequestExecutor, 10)
+
+        for (i in 0 until REQUESTS) {
+            val latch = CountDownLatch(1)
+            testRequests.firstOfBatch(object : RequestCallbackStub<String>() {
+                override fun onSuccess(response: String) = latch.countDown()
+            })
+            latch.await()
+        }
+        return histogram
+    }
+
+    private object DelayedRequestExecutor : BatchTestRequestExecutor() {
+        override fun executePost(body: String, headers: Map<String, String>, queryParams: Map<String, String>): Pair<String, Map<String, String>> {
+            Thread.sleep(NETWORK_DELAY)
+            return super.executePost(body, headers, queryParams)
+        }
+    }
+}
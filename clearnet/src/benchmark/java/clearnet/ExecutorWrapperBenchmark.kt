@@ -0,0 +1,79 @@
+package clearnet
+
+import clearnet.annotations.Parameter
+import clearnet.annotations.RPCMethodScope
+import clearnet.help.HeadersProviderStub
+import clearnet.help.RequestCallbackStub
+import clearnet.help.RequestExecutorStub
+import clearnet.help.TestGeneratedRequests
+import clearnet.interfaces.IConverterExecutor
+import clearnet.interfaces.ISerializer
+import clearnet.interfaces.RequestCallback
+import clearnet.model.PostParams
+import java.lang.reflect.Type
+
+/**
+ * Manual microbenchmark of the client side cost of an api call.
+ * Run it with `gradle :clearnet:benchmark -Pbenchmark=clearnet.ExecutorWrapperBenchmark`.
+ *
+ * "reflection per call" repeats the annotation reading which the proxy did on every invocation before
+ * the descriptors cache, the descriptors themselves are internal to the library.
+ */
+object ExecutorWrapperBenchmark {
+    private const val WARM_UP = 200_000
+    private const val ITERATIONS = 1_000_000
+
+    private var blackHole = 0
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        val method = BenchmarkRequests::class.java.getMethod("request", Int::class.javaPrimitiveType, RequestCallback::class.java)
+        val callback = RequestCallbackStub<String>()
+        val arguments = arrayOf<Any>(1, callback)
+
+        measure("reflection per call") {
+            blackHole += method.declaringClass.getAnnotation(RPCMethodScope::class.java).value.length
+            blackHole += method.annotations.size
+            blackHole += method.parameterAnnotations.sumBy { it.size }
+            blackHole += method.genericParameterTypes.last().hashCode()
+            blackHole += arguments.size
+        }
+
+        val executorWrapper = ExecutorWrapper(NopConverterExecutor, HeadersProviderStub, NopSerializer)
+        val proxy = executorWrapper.create(BenchmarkRequests::class.java, RequestExecutorStub(), 10)
+        measure("proxy invocation") {
+            proxy.request(1, callback)
+        }
+
+        val generated = executorWrapper.create(TestGeneratedRequests::class.java, RequestExecutorStub(), 10)
+        measure("generated invocation") {
+            generated.generatedRequest(callback)
+        }
+
+        println("(ignore: $blackHole)")
+    }
+
+    private inline fun measure(name: String, call: () -> Unit) {
+        for (i in 0 until WARM_UP) call()
+        val start = System.nanoTime()
+        for (i in 0 until ITERATIONS) call()
+        val time = System.nanoTime() - start
+        println(String.format("%-22s %8.1f ns/call", name, time.toDouble() / ITERATIONS))
+    }
+
+    @RPCMethodScope("benchmark")
+    interface BenchmarkRequests {
+        fun request(@Parameter("p1") p1: Int, callback: RequestCallback<String>)
+    }
+
+    private object NopConverterExecutor : IConverterExecutor {
+        override fun executePost(postParams: PostParams) {
+            blackHole += postParams.cacheKey.length
+        }
+    }
+
+    private object NopSerializer : ISerializer {
+        override fun serialize(obj: Any?) = "{}"
+        override fun deserialize(body: String?, objectType: Type): Any? = null
+    }
+}
@@ -0,0 +1,82 @@
+package clearnet
+
+import clearnet.interfaces.IInvocationBlock.QueueAlgorithm
+import io.reactivex.Scheduler
+import io.reactivex.disposables.Disposable
+import java.util.concurrent.TimeUnit
+
+/**
+ * The queue of a block with [QueueAlgorithm.ADAPTIVE] or [QueueAlgorithm.TIME_OR_SIZE_THRESHOLD].
+ *
+ * The queue is consumed when the window has passed since the first queued task
+ * or as soon as it reaches [sizeThreshold] or the smallest maxBatchSize of the queued tasks.
+ *
+ * In the [adaptive] mode a task which comes to the idle block is consumed at once. Tasks which come while the block
+ * is busy wait for the end of the running batch, but no longer than the window. The window is doubled after each
+ * batch of several tasks up to [maxWindow] and halved after each single task down to [minWindow].
+ * Otherwise the window is always [maxWindow].
+ */
+internal class BatchBuffer(
+        private val minWindow: Long,
+        private val maxWindow: Long,
+        private val sizeThreshold: Int,
+        private val adaptive: Boolean,
+        private val scheduler: Scheduler,
+        private val consumer: (tasks: List<CoreTask>, onConsumed: () -> Unit) -> Unit
+) {
+    private var tasks = ArrayList<CoreTask>()
+    private var sizeLimit = sizeThreshold
+    private var window = if (adaptive) minWindow else maxWindow
+    private var running = 0
+    private var timer: Disposable? = null
+
+    fun add(task: CoreTask) {
+        val batch = synchronized(this) {
+            tasks.add(task)
+            sizeLimit = minOf(sizeLimit, task.postParams.maxBatchSize)
+
+            when {
+                adaptive && running == 0 -> takeBatch()
+                tasks.size >= sizeLimit -> takeBatch()
+                else -> {
+                    if (timer == null) timer = scheduler.scheduleDirect({ onTimer() }, window, TimeUnit.MILLISECONDS)
+                    null
+                }
+            }
+        }
+        batch?.let(this::consume)
+    }
+
+    private fun onTimer() {
+        val batch = synchronized(this) {
+            timer = null
+            if (tasks.isEmpty()) null else takeBatch()
+        }
+        batch?.let(this::consume)
+    }
+
+    private fun onConsumed() {
+        val batch = synchronized(this) {
+            running--
+            if (adaptive && running == 0 && tasks.isNotEmpty()) takeBatch() else null
+        }
+        batch?.let(this::consume)
+    }
+
+    private fun takeBatch(): List<CoreTask> {
+        timer?.dispose()
+        timer = null
+
+        if (adaptive) {
+            window = if (tasks.size > 1) minOf(maxWindow, maxOf(window * 2, 1L)) else maxOf(minWindow, window / 2)
+        }
+
+        val batch = tasks
+        tasks = ArrayList()
+        sizeLimit = sizeThreshold
+        running++
+        return batch
+    }
+
+    private fun consume(batch: List<CoreTask>) = consumer(batch, this::onConsumed)
+}
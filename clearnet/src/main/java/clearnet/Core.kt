@@ -2,7 +2,9 @@ package clearnet
 
 import clearnet.error.UnknownExternalException
 import clearnet.interfaces.*
+import clearnet.interfaces.IInvocationBlock.QueueAlgorithm.ADAPTIVE
 import clearnet.interfaces.IInvocationBlock.QueueAlgorithm.IMMEDIATE
+import clearnet.interfaces.IInvocationBlock.QueueAlgorithm.TIME_OR_SIZE_THRESHOLD
 import clearnet.interfaces.IInvocationBlock.QueueAlgorithm.TIME_THRESHOLD
 import clearnet.model.PostParams
 import io.reactivex.Observable
@@ -10,53 +12,63 @@ import io.reactivex.Scheduler
 import io.reactivex.schedulers.Schedulers
 import io.reactivex.subjects.PublishSubject
 import io.reactivex.subjects.Subject
-import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
 import java.util.concurrent.Executor
+import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * Default realization of [IConverterExecutor] with the validation models feature
+ *
+ * @param workers the routing of the tasks is sharded by the cache key across the workers, so the tasks with
+ * the same key keep their order and are bound together. Use [shardWorkers] to create them.
+ * Each shard has its own block queues, so the batches are collected per shard: the tasks which would make one batch
+ * with a single worker are sent in up to one batch per shard.
  */
 class Core(
         private val ioExecutor: Executor,
-        private val worker: Scheduler = Schedulers.single(),
+        workers: List<Scheduler>,
         private val timeTracker: TaskTimeTracker? = null,
         vararg blocks: IInvocationBlock
 ) : IConverterExecutor, ICallbackStorage {
-    private val flow: Map<InvocationBlockType, Subject<CoreTask>>
-    private val taskStorage: MutableList<CoreTask> = CopyOnWriteArrayList()
+    private val shards: List<Shard>
+    val tasks = TaskRegistry()
+
+    /**
+     * The counters of the shards in the order of the workers
+     */
+    val shardCounters: List<ShardCounters>
     private val ioScheduler = Schedulers.from(ioExecutor)
 
     // todo support nulls
-    private val collector = PublishSubject.create<Pair<CoreTask, CoreTask.Result>>().toSerialized()
+    /**
+     * Delivered results by the request identifier, so each result goes only to the subscribers of its method
+     */
+    private val collectors: ConcurrentMap<String, Subject<CoreTask.Result>> = ConcurrentHashMap()
 
     init {
-        flow = blocks.associate { block ->
-            val subject = PublishSubject.create<CoreTask>().toSerialized()
-
-            when (block.queueAlgorithm) {
-                IMMEDIATE -> subject.subscribeImmediate(block)
-                TIME_THRESHOLD -> subject.subscribeWithTimeThreshold(block)
-            }
-
-            block.invocationBlockType to subject
-        }
+        require(workers.isNotEmpty()) { "At least one worker is required" }
+        shards = workers.map { Shard(it, blocks) }
+        shardCounters = shards.map { it.counters }
     }
 
+    /**
+     * The single [worker] routes all the tasks
+     */
+    constructor(
+            ioExecutor: Executor,
+            worker: Scheduler = Schedulers.single(),
+            timeTracker: TaskTimeTracker? = null,
+            vararg blocks: IInvocationBlock
+    ) : this(ioExecutor, listOf(worker), timeTracker, *blocks)
 
     override fun executePost(postParams: PostParams) {
-        Observable.just(postParams.bindable).subscribeOn(worker).flatMap { bindable ->
-            if (bindable) Observable.fromIterable(taskStorage)
-            else Observable.empty()
-        }.filter { taskItem ->
-            taskItem.respond(postParams.requestTypeIdentifier, postParams.cacheKey)
-        }.sorted(CoreTask.ResultsCountComparator).switchIfEmpty {
-            val task = CoreTask(postParams)
-            taskStorage += task
-            placeToQueue(task, InvocationBlockType.INITIAL)
-            task.observe().subscribe { collector.onNext(task to it) }
-            it.onNext(task)
-        }.take(1).flatMap {
+        val shard = shardOf(postParams.cacheKey)
+        Observable.just(postParams).subscribeOn(shard.worker).map {
+            (if (it.bindable) findRunningTask(it)?.also { shard.counters.onBound() } else null) ?: startTask(it, shard)
+        }.flatMap {
             it.observe()
         }.flatMap {
             if (it is CoreTask.ErrorResult) Observable.error(it.error)
@@ -66,9 +78,9 @@ class Core(
 
 
     override fun subscribe(method: String, callback: RequestCallback<*>, once: Boolean): Subscription {
-        val disposable = collector.filter { (task, _) -> task.respond(method, null) }
+        val disposable = collector(method)
                 .compose { if (once) it.take(1) else it }
-                .map { it.second }.subscribe {
+                .subscribe {
                     if (it is CoreTask.SuccessResult) {
                         (callback as RequestCallback<Any?>).onSuccess(it.result)
                     } else if (it is CoreTask.ErrorResult) {
@@ -82,22 +94,41 @@ class Core(
     }
 
     override fun <T> observe(method: String): Observable<T> {
-        return collector.filter { (task, _) -> task.respond(method, null) }
-                .map { it.second }
+        return collector(method)
                 .filter { it is CoreTask.SuccessResult }
                 .map { (it as CoreTask.SuccessResult).result as T }
     }
 
 
-    private fun placeToQueue(task: CoreTask, index: InvocationBlockType) {
-        flow[index]!!.onNext(task)
+    private fun findRunningTask(postParams: PostParams): CoreTask? {
+        return tasks.find(postParams.requestTypeIdentifier, postParams.cacheKey).minWith(CoreTask.ResultsCountComparator)
+    }
+
+    private fun startTask(postParams: PostParams, shard: Shard): CoreTask {
+        val task = CoreTask(postParams)
+        tasks.add(task)
+        shard.counters.onStarted()
+        placeToQueues(null, task, arrayOf(InvocationBlockType.INITIAL))
+        task.observe().subscribe { collectors[postParams.requestTypeIdentifier]?.onNext(it) }
+        return task
+    }
+
+    private fun collector(method: String): Subject<CoreTask.Result> = collectors[method] ?: run {
+        val collector = PublishSubject.create<CoreTask.Result>().toSerialized()
+        collectors.putIfAbsent(method, collector) ?: collector
     }
 
+    private fun shardOf(cacheKey: String) = if (shards.size == 1) shards[0] else shards[(cacheKey.hashCode() and Int.MAX_VALUE) % shards.size]
+
     private fun placeToQueues(from: InvocationBlockType?, task: CoreTask, indexes: Array<InvocationBlockType>) {
-        task.move(from, indexes)
-        indexes.forEach { placeToQueue(task, it) }
-        if (task.isFinished()) {
-            taskStorage.remove(task)
+        val finished = task.move(from, indexes)
+        tasks.onMove(from, indexes)
+        val shard = shardOf(task.cacheKey)
+        indexes.forEach { shard.flow[it]!!.onNext(task) }
+        // the check of isFinished() would be true in several threads if the task is finished in a parallel block
+        if (finished) {
+            tasks.remove(task)
+            shard.counters.onFinished()
             timeTracker?.onTaskFinished(
                     task.postParams.invocationStrategy,
                     task.postParams.requestTypeIdentifier,
@@ -111,7 +142,7 @@ class Core(
         placeToQueues(block.invocationBlockType, task, result.nextIndexes)
     }
 
-    private fun Observable<CoreTask>.subscribeImmediate(block: IInvocationBlock) {
+    private fun Observable<CoreTask>.subscribeImmediate(block: IInvocationBlock, worker: Scheduler) {
         this.observeOn(worker).subscribe { task ->
             val promise = task.promise().apply {
                 observe().observeOn(Schedulers.trampoline()).subscribe { result ->
@@ -130,28 +161,74 @@ class Core(
         }
     }
 
-    private fun Observable<CoreTask>.subscribeWithTimeThreshold(block: IInvocationBlock) {
+    private fun Observable<CoreTask>.subscribeWithTimeThreshold(block: IInvocationBlock, worker: Scheduler) {
         this.buffer(block.queueTimeThreshold, TimeUnit.MILLISECONDS, worker).filter {
             !it.isEmpty()
         }.subscribe { taskList ->
-            val promises = taskList.map { task ->
-                task.promise().apply {
-                    observe().observeOn(Schedulers.trampoline()).subscribe { result ->
-                        handleTaskResult(block, task, result)
-                    }
+            consumeQueue(block, taskList)
+        }
+    }
+
+    private fun Observable<CoreTask>.subscribeWithBatchBuffer(block: IInvocationBlock, worker: Scheduler, adaptive: Boolean) {
+        val buffer = BatchBuffer(block.queueMinTimeThreshold, block.queueTimeThreshold, block.queueSizeThreshold, adaptive, worker) { taskList, onConsumed ->
+            consumeQueue(block, taskList, onConsumed)
+        }
+        this.observeOn(worker).subscribe(buffer::add)
+    }
+
+    /**
+     * The [onConsumed] is called when all the tasks of the batch have got their results,
+     * the block can deliver them later than it returns, e.g. from the dispatched conversions
+     */
+    private fun consumeQueue(block: IInvocationBlock, taskList: List<CoreTask>, onConsumed: () -> Unit = {}) {
+        val pending = AtomicInteger(taskList.size)
+        val promises = taskList.map { task ->
+            task.promise().apply {
+                observe().observeOn(Schedulers.trampoline()).subscribe { result ->
+                    handleTaskResult(block, task, result)
+                    if (pending.decrementAndGet() == 0) onConsumed()
                 }
             }
+        }
 
-            // todo need test this
-            ioExecutor.execute {
-                try {
-                    block.onQueueConsumed(promises)
-                }catch (e: Throwable){
-                    promises.forEach {
-                        it.setError(UnknownExternalException(e.message), block.invocationBlockType)
-                    }
+        // todo need test this
+        ioExecutor.execute {
+            try {
+                block.onQueueConsumed(promises, ioExecutor)
+            }catch (e: Throwable){
+                promises.forEach {
+                    it.setError(UnknownExternalException(e.message), block.invocationBlockType)
                 }
             }
         }
     }
+
+    /**
+     * The worker with its own queues of the blocks
+     */
+    private inner class Shard(val worker: Scheduler, blocks: Array<out IInvocationBlock>) {
+        val counters = ShardCounters()
+        val flow: Map<InvocationBlockType, Subject<CoreTask>> = blocks.associate { block ->
+            val subject = PublishSubject.create<CoreTask>().toSerialized()
+
+            when (block.queueAlgorithm) {
+                IMMEDIATE -> subject.subscribeImmediate(block, worker)
+                TIME_THRESHOLD -> subject.subscribeWithTimeThreshold(block, worker)
+                TIME_OR_SIZE_THRESHOLD -> subject.subscribeWithBatchBuffer(block, worker, false)
+                ADAPTIVE -> subject.subscribeWithBatchBuffer(block, worker, true)
+            }
+
+            block.invocationBlockType to subject
+        }
+    }
+
+    companion object {
+        /**
+         * Creates the [count] single thread workers for the sharded [Core]
+         */
+        @JvmStatic
+        fun shardWorkers(count: Int): List<Scheduler> = List(count) { i ->
+            Schedulers.from(Executors.newSingleThreadExecutor { Thread(it, "ClearNet worker $i").apply { isDaemon = true } })
+        }
+    }
 }
@@ -2,8 +2,10 @@ package clearnet
 
 import clearnet.error.ClearNetworkException
 import clearnet.model.PostParams
+import io.reactivex.subjects.AsyncSubject
 import io.reactivex.subjects.ReplaySubject
 import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicLong
 import kotlin.Comparator
 
@@ -16,31 +18,37 @@ class CoreTask internal constructor(
     val startTime = System.currentTimeMillis()
 
     private val inQueues: MutableList<InvocationBlockType> = ArrayList(2)
-    private val results = ReplaySubject.create<Result>()
-    private val delivered = ReplaySubject.create<Result>().toSerialized()
+    private val resultsCount = AtomicInteger()
+    @Volatile private var lastSuccess: SuccessResult? = null
+    @Volatile private var lastError: ErrorResult? = null
+    @Volatile private var finished = false
+    private val delivered = ReplaySubject.createWithSize<Result>(DELIVERY_REPLAY_SIZE).toSerialized()
 
-    fun getLastResult(): SuccessResult = results.values
-            .map { it as Result }
-            .last { !it.isAncillary && it is SuccessResult } as SuccessResult
+    fun getLastResult(): SuccessResult = lastSuccess ?: throw NoSuchElementException("Task has no success results")
 
-    // Warning not reactive transformations
-    fun getLastErrorResult(): ErrorResult = results.values
-                .map { it as Result }
-                .last { !it.isAncillary && it is ErrorResult} as ErrorResult
+    fun getLastErrorResult(): ErrorResult = lastError ?: throw NoSuchElementException("Task has no error results")
 
     fun deliver(result: Result) = delivered.onNext(result)
 
     fun getRequestIdentifier() = postParams.requestTypeIdentifier
 
     // todo no queues
+    /**
+     * @return true if the task has been finished by this move
+     */
     fun move(from: InvocationBlockType?, to: Array<InvocationBlockType>) = synchronized(inQueues) {
         if (from != null) inQueues.remove(from)
         inQueues.addAll(to)
-        if (inQueues.isEmpty()) results.onComplete()
+        if (inQueues.isEmpty() && !finished) {
+            finished = true
+            true
+        } else {
+            false
+        }
     }
 
     @Deprecated("")
-    fun isFinished() = results.hasComplete()
+    fun isFinished() = finished
 
     private fun resolveNextIndexes(index: InvocationBlockType, isSuccess: Boolean) = postParams.invocationStrategy[index][isSuccess]
 
@@ -51,11 +59,26 @@ class CoreTask internal constructor(
     internal fun observe() = delivered.hide()
 
     internal fun promise() = Promise().apply {
-        observe().subscribe(results::onNext)    // only elements
+        observe().subscribe(this@CoreTask::onResult)    // only elements
+    }
+
+    private fun onResult(result: Result) {
+        if (finished) return
+        resultsCount.incrementAndGet()
+        when (result) {
+            is SuccessResult -> lastSuccess = result
+            is ErrorResult -> lastError = result
+        }
     }
 
     companion object {
         private val idIterator = AtomicLong()
+
+        /**
+         * Subscribers which bind to the running task get only the latest deliveries:
+         * enough for the cached and then the actual result
+         */
+        private const val DELIVERY_REPLAY_SIZE = 2
     }
 
 
@@ -63,18 +86,33 @@ class CoreTask internal constructor(
 
     class ErrorResult(val error: ClearNetworkException, nextIndexes: Array<clearnet.InvocationBlockType>) : Result(nextIndexes, false)
 
-    class SuccessResult(val result: kotlin.Any?, val plainResult: kotlin.String?, nextIndexes: kotlin.Array<clearnet.InvocationBlockType>) : Result(nextIndexes, false)
+    class SuccessResult internal constructor(val result: kotlin.Any?, private val plainSource: Lazy<String?>, nextIndexes: kotlin.Array<clearnet.InvocationBlockType>) : Result(nextIndexes, false) {
+        constructor(result: kotlin.Any?, plainResult: kotlin.String?, nextIndexes: kotlin.Array<clearnet.InvocationBlockType>) : this(result, lazyOf(plainResult), nextIndexes)
+
+        /**
+         * The serialized result for the cache, it's built on the first access
+         */
+        val plainResult: String?
+            get() = plainSource.value
+    }
 
 
 
     inner class Promise {
-        private val resultSubject = ReplaySubject.create<Result>()
+        private val resultSubject = AsyncSubject.create<Result>()
         val taskRef = this@CoreTask
         internal fun observe() = resultSubject.hide()
 
         // Unfortunately we must handle null responses
-        fun setResult(result: Any?, plainResult: String?, from: InvocationBlockType) {
-            dispatch(SuccessResult(result, plainResult, resolveNextIndexes(from, true)))
+        fun setResult(result: Any?, plainResult: String?, from: InvocationBlockType) = setLazyResult(result, { plainResult }, from)
+
+        /**
+         * The [plainResult] is kept and called only if the result goes to the [InvocationBlockType.SAVE_TO_CACHE]
+         */
+        fun setLazyResult(result: Any?, plainResult: () -> String?, from: InvocationBlockType) {
+            val nextIndexes = resolveNextIndexes(from, true)
+            val plainSource = if (InvocationBlockType.SAVE_TO_CACHE in nextIndexes) lazy(plainResult) else lazyOf(null)
+            dispatch(SuccessResult(result, plainSource, nextIndexes))
         }
 
         fun setError(exception: ClearNetworkException, from: InvocationBlockType) {
@@ -106,6 +144,6 @@ class CoreTask internal constructor(
     }
 
     object ResultsCountComparator : Comparator<CoreTask> {
-        override fun compare(p0: CoreTask, p1: CoreTask) = p0.results.values.size.compareTo(p1.results.values.size)
+        override fun compare(p0: CoreTask, p1: CoreTask) = p0.resultsCount.get().compareTo(p1.resultsCount.get())
     }
 }
\ No newline at end of file
@@ -1,10 +1,6 @@
 package clearnet
 
-import clearnet.annotations.*
-import clearnet.annotations.Parameter
-import clearnet.annotations.NoBatch
 import clearnet.annotations.RPCMethodScope
-import clearnet.conversion.DefaultConversionStrategy
 import clearnet.error.ClearNetworkException
 import clearnet.interfaces.*
 import clearnet.interfaces.ConversionStrategy
@@ -14,6 +10,8 @@ import io.reactivex.Observable
 import io.reactivex.disposables.Disposable
 import io.reactivex.subjects.Subject
 import java.lang.reflect.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
 
 
 class ExecutorWrapper(private val converterExecutor: IConverterExecutor,
@@ -22,49 +20,67 @@ class ExecutorWrapper(private val converterExecutor: IConverterExecutor,
     private val defaultCallbackHolder: ICallbackHolder
 
     fun <T> create(tClass: Class<T>, requestExecutor: IRequestExecutor, maxBatchSize: Int, callbackHolder: ICallbackHolder = defaultCallbackHolder): T {
-        return Proxy.newProxyInstance(tClass.classLoader, arrayOf<Class<*>>(tClass), ApiInvocationHandler(
-                requestExecutor,
-                callbackHolder,
-                tClass.getAnnotation(RPCMethodScope::class.java)?.value,
-                maxBatchSize
+        val invoker = Invoker(requestExecutor, callbackHolder, maxBatchSize)
+        return createGenerated(tClass, invoker) ?: Proxy.newProxyInstance(tClass.classLoader, arrayOf<Class<*>>(tClass), ApiInvocationHandler(
+                invoker,
+                tClass.getAnnotation(RPCMethodScope::class.java)?.value
         )) as T
     }
 
+    /**
+     * Instantiates the implementation generated by processors.RpcProxyGenerator if it is in the classpath
+     */
+    private fun <T> createGenerated(tClass: Class<T>, invoker: Invoker): T? {
+        val generatedClass = try {
+            Class.forName(generatedClassName(tClass), true, tClass.classLoader)
+        } catch (e: ClassNotFoundException) {
+            return null
+        }
+        return tClass.cast(generatedClass.getConstructor(Invoker::class.java).newInstance(invoker))
+    }
 
-    private inner class ApiInvocationHandler(
+
+    /**
+     * Builds [RpcPostParams] and pushes them to the [IConverterExecutor].
+     * The same instance serves the reflective proxy and the generated implementation of an api interface.
+     */
+    inner class Invoker internal constructor(
             private val requestExecutor: IRequestExecutor,
             private val callbackHolder: ICallbackHolder,
-            private val rpcMethodScope: String?,
             private val maxBatchSize: Int
-    ) : InvocationHandler {
-        override fun invoke(proxy: Any?, method: Method, args: Array<out Any>?): Any? {
-            val requestBody = RPCRequest(retrieveRemoteMethod(method))
-
-            addDefaultParameterIfExists(method, requestBody)
-            val (invocationStrategy: MergedInvocationStrategy, expiresAfter: Long) = retrieveInvocationStrategyAndExpiration(method)
-            val (requestCallback, type) = fillRequestBodyAndFindListeners(args, method, requestBody)
-
+    ) {
+        fun execute(
+                requestBody: RPCRequest,
+                resultType: Type,
+                invocationStrategy: MergedInvocationStrategy,
+                expiresAfter: Long,
+                conversionStrategy: ConversionStrategy,
+                bindable: Boolean,
+                batchable: Boolean,
+                requestCallback: RequestCallback<*>?,
+                returnsObservable: Boolean
+        ): Observable<*>? {
             val postParams = RpcPostParams(
                     generateAmruRequestParams(requestBody),
                     requestBody,
-                    type,
+                    resultType,
                     requestExecutor,
                     invocationStrategy,
                     expiresAfter,
-                    retrieveConversionStrategy(method),
+                    conversionStrategy,
                     headerProvider.obtainHeadersList(),
-                    method.getAnnotation(NotBindable::class.java) == null,
-                    getMaxBatchSize(method),
+                    bindable,
+                    if (batchable) maxBatchSize else 1,
                     serializer
             )
 
 
-            wrapCallback(requestCallback, postParams.subject, callbackHolder)
+            wrapCallback(requestCallback as RequestCallback<Any?>?, postParams.subject, callbackHolder)
 
             // todo check callback and observable
             converterExecutor.executePost(postParams)
 
-            return if(isReturnsObservable(method)) postParams.subject.observeOn(callbackHolder.scheduler).doOnSubscribe(callbackHolder::hold)
+            return if (returnsObservable) postParams.subject.observeOn(callbackHolder.scheduler).doOnSubscribe(callbackHolder::hold)
             else null
         }
 
@@ -82,118 +98,58 @@ class ExecutorWrapper(private val converterExecutor: IConverterExecutor,
             }
         }
 
-        private fun retrieveRemoteMethod(method: Method): String {
-            val methodAnnotation = method.getAnnotation(RPCMethod::class.java)
-            if (methodAnnotation != null) {
-                return methodAnnotation.value
-            }
-
-            val scope = method.getAnnotation(RPCMethodScope::class.java)?.value ?: rpcMethodScope
-
-            if(scope != null) {
-                return if(scope.isEmpty()) method.name else "$scope.${method.name}"
-            } else {
-                throw IllegalArgumentException("Method " + method.name + " must be annotated with @" + RPCMethod::class.java.name + " or @" + RPCMethodScope::class.java.name + " annotation")
-            }
-        }
-
-        private fun isReturnsObservable(method: Method) = method.returnType == Observable::class.java
+        private fun generateAmruRequestParams(requestBody: RPCRequest) = mapOf("applicationMethod" to requestBody.method)
+    }
 
-        private fun getGenericParameterType(method: Method, parameterIndex: Int): Type {
-            return (method.genericParameterTypes[parameterIndex] as ParameterizedType).actualTypeArguments[0]
-        }
 
-        private fun getGenericReturnType(method: Method): Type {
-            return (method.genericReturnType as ParameterizedType).actualTypeArguments[0]
-        }
+    private inner class ApiInvocationHandler(
+            private val invoker: Invoker,
+            private val rpcMethodScope: String?
+    ) : InvocationHandler {
+        private val descriptors: ConcurrentMap<Method, MethodDescriptor> = ConcurrentHashMap()
 
-        private fun fillRequestBodyAndFindListeners(args: Array<out Any>?, method: Method, requestBody: RPCRequest): Pair<RequestCallback<Any?>?, Type> {
-            var requestCallback: RequestCallback<Any?>? = null
-
-            var callbackIndex = -1
-            if (args != null) {
-                val annotations = method.parameterAnnotations
-
-                for (i in args.indices) {
-                    var parameterSet = false
-                    var bodySet = false
-                    for (annotation in annotations[i]) {
-                        if (annotation is Parameter) {
-                            requestBody.addParameter(annotation.value, args[i])
-                            parameterSet = true
-                        } else if (annotation is Body) {
-                            requestBody.setParamsBody(args[i])
-                            bodySet = true
-                        }
-                    }
-
-                    if (parameterSet || bodySet) continue
-
-                    if (args[i] is RequestCallback<*>) {
-                        requestCallback = args[i] as RequestCallback<Any?>
-                        callbackIndex = i
-                    } else {
-                        throw IllegalArgumentException("All parameters in method " + method.name + " must have the Parameter annotation")
-                    }
-                }
-            }
-            val type = when {
-                callbackIndex >= 0 -> getGenericParameterType(method, callbackIndex)
-                isReturnsObservable(method) -> getGenericReturnType(method)
-                else -> method.getAnnotation(ResultType::class.java)?.value?.java as Type? ?: Any::class.java
-            }
-            return Pair(requestCallback, type)
-        }
+        override fun invoke(proxy: Any?, method: Method, args: Array<out Any>?): Any? {
+            val descriptor = descriptors.getOrPut(method) { MethodDescriptor(method, rpcMethodScope) }
+            val requestBody = descriptor.createRequestBody()
+            val (requestCallback, type) = descriptor.fillRequestBodyAndFindListeners(args, requestBody)
 
-        private fun addDefaultParameterIfExists(method: Method, requestBody: RPCRequest) {
-            val defaultParameters = retrieveDefaultParameters(method)
-            defaultParameters.forEach {
-                requestBody.addParameter(it.key, it.value)
-            }
+            return invoker.execute(
+                    requestBody,
+                    type,
+                    descriptor.invocationStrategy.copy(),
+                    descriptor.expiresAfter,
+                    descriptor.conversionStrategy,
+                    descriptor.bindable,
+                    descriptor.batchable,
+                    requestCallback,
+                    descriptor.returnsObservable
+            )
         }
+    }
 
-        private fun retrieveDefaultParameters(method: Method): Array<DefaultParameter> {
-            val defaultParameter = method.getAnnotation(DefaultParameter::class.java)
-            val defaultParameters = method.getAnnotation(DefaultParameters::class.java)
-
-            if (defaultParameter == null || defaultParameters == null) {
-                return if (defaultParameter == null) defaultParameters?.value ?: arrayOf() else arrayOf(defaultParameter)
-            } else {
-                throw IllegalArgumentException("Method ${method.name} must have either DefaultParameter annotation or DefaultParameters but not both")
-            }
-        }
 
-        private fun retrieveConversionStrategy(method: Method): ConversionStrategy {
-            val conversionStrategyAnnotation = method.getAnnotation(clearnet.annotations.ConversionStrategy::class.java)
-            return if (conversionStrategyAnnotation == null) {
-                DefaultConversionStrategy()
-            } else {
-                val result: ConversionStrategy = conversionStrategyAnnotation.value.java.newInstance() as ConversionStrategy
-                result.init(conversionStrategyAnnotation.parameter)
-                result
-            }
-        }
+    companion object {
+        /**
+         * The suffix of classes generated by processors.RpcProxyGenerator
+         */
+        const val GENERATED_CLASS_SUFFIX = "_ClearNetImpl"
 
-        private fun retrieveInvocationStrategyAndExpiration(method: Method): Pair<MergedInvocationStrategy, Long> {
-            var invocationStrategies: Array<InvocationStrategy> = emptyArray()
-            var expiresAfter: Long = 0
-            val annotation = method.getAnnotation(clearnet.annotations.InvocationStrategy::class.java)
-            if (annotation != null) {
-                invocationStrategies = annotation.value
-                expiresAfter = annotation.cacheExpiresAfter
-            }
+        @JvmStatic
+        fun generatedClassName(apiClass: Class<*>) = apiClass.name.replace('$', '_') + GENERATED_CLASS_SUFFIX
 
-            return if (invocationStrategies.isEmpty()) {
-                Pair(MergedInvocationStrategy(arrayOf(InvocationStrategy.NO_CACHE)), expiresAfter)
-            } else {
-                Pair(MergedInvocationStrategy(invocationStrategies), expiresAfter)
-            }
+        /**
+         * Resolves the result type of the api method once for the generated implementations
+         *
+         * @param callbackIndex index of the [RequestCallback] parameter or -1 if the method returns [Observable]
+         */
+        @JvmStatic
+        fun resultType(apiClass: Class<*>, methodName: String, parameterTypes: Array<Class<*>>, callbackIndex: Int): Type {
+            return MethodDescriptor.resolveResultType(apiClass.getMethod(methodName, *parameterTypes), callbackIndex)
         }
 
-        private fun generateAmruRequestParams(requestBody: RPCRequest) = mapOf("applicationMethod" to requestBody.method)
-
-        private fun getMaxBatchSize(method: Method): Int = with(method.getAnnotation(NoBatch::class.java)) {
-            return if (this == null) maxBatchSize else 1
+        @JvmStatic
+        fun conversionStrategy(strategyClass: Class<*>, parameter: String): ConversionStrategy {
+            return MethodDescriptor.createConversionStrategy(strategyClass, parameter)
         }
     }
 
@@ -0,0 +1,34 @@
+package clearnet.conversion
+
+import clearnet.interfaces.ConversionStrategy.SmartConverter
+import clearnet.interfaces.IJsonValueSerializer
+import clearnet.interfaces.ISerializer
+import org.json.JSONArray
+import org.json.JSONObject
+import java.lang.reflect.Type
+
+/**
+ * Default [IJsonValueSerializer] on top of any [ISerializer]. The values which are already of the result type,
+ * when it's one of the org.json value classes, e.g. [JSONObject] or String results, are returned as is.
+ * The others, including the results of the Object type, are printed and deserialized by the [serializer].
+ */
+class JsonValueSerializer(private val serializer: ISerializer) : IJsonValueSerializer, ISerializer by serializer {
+    override fun deserializeValue(value: Any?, objectType: Type): Any? {
+        if (value != null && objectType in VALUE_TYPES && (objectType as Class<*>).isInstance(value)) {
+            return value
+        }
+        return serializer.deserialize(SmartConverter.valueToString(value), objectType)
+    }
+
+    private companion object {
+        val VALUE_TYPES: Set<Type> = hashSetOf(
+                JSONObject::class.java,
+                JSONArray::class.java,
+                String::class.java,
+                Boolean::class.javaObjectType,
+                Int::class.javaObjectType,
+                Long::class.javaObjectType,
+                Double::class.javaObjectType
+        )
+    }
+}
@@ -0,0 +1,54 @@
+package clearnet
+
+import clearnet.interfaces.TaskTimeTracker
+import clearnet.model.MergedInvocationStrategy
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * [TaskTimeTracker] which counts the times of the finished tasks in power of two buckets: 0, 1, 2-3, 4-7 ms and so on.
+ * Pass it to the [Core] to compare the latency of different queue settings.
+ */
+class LatencyHistogram : TaskTimeTracker {
+    private val buckets = AtomicLongArray(BUCKETS)
+
+    val count: Long
+        get() = (0 until BUCKETS).fold(0L) { sum, i -> sum + buckets[i] }
+
+    override fun onTaskFinished(invocationStrategy: MergedInvocationStrategy, method: String, time: Long) = record(time)
+
+    fun record(time: Long) {
+        buckets.incrementAndGet(bucketOf(time))
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the upper bound in milliseconds of the bucket which holds the [percentile]
+     */
+    fun percentile(percentile: Double): Long {
+        val counts = LongArray(BUCKETS) { buckets[it] }
+        val total = counts.sum()
+        if (total == 0L) return 0L
+
+        val rank = Math.max(1L, Math.ceil(total * percentile / 100).toLong())
+        var accumulated = 0L
+        counts.forEachIndexed { bucket, count ->
+            accumulated += count
+            if (accumulated >= rank) return upperBound(bucket)
+        }
+        return upperBound(BUCKETS - 1)
+    }
+
+    fun reset() {
+        for (i in 0 until BUCKETS) buckets.set(i, 0L)
+    }
+
+    override fun toString() = "count: $count, p50: ${percentile(50.0)} ms, p90: ${percentile(90.0)} ms, p99: ${percentile(99.0)} ms"
+
+    private companion object {
+        const val BUCKETS = 64
+
+        fun bucketOf(time: Long) = if (time <= 0L) 0 else 64 - java.lang.Long.numberOfLeadingZeros(time)
+
+        fun upperBound(bucket: Int) = if (bucket == 0) 0L else (1L shl bucket) - 1
+    }
+}
@@ -0,0 +1,314 @@
+package clearnet
+
+import clearnet.interfaces.IStreamCacheProvider
+import io.reactivex.Scheduler
+import io.reactivex.disposables.Disposable
+import io.reactivex.schedulers.Schedulers
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.nio.Buffer
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * Persistent [IStreamCacheProvider] for the JVM. The values are appended to the memory-mapped segment files
+ * in the [directory] and are read right from the mapped memory. The index of the latest records is kept in memory
+ * and is restored by reading the segments on start.
+ *
+ * The record is the header: key length + 1, value length, expiration time, then the UTF-8 key and value.
+ * The key length is written last, so the zero marks the end of the written records.
+ * The later records of a key replace the earlier ones on start. The expired records stay in the index until
+ * their segment is compacted, so the compaction knows which keys need the tombstone, see [compact].
+ *
+ * The compaction runs every [compactionPeriod] on the [scheduler], see [compact].
+ * The closed provider doesn't store and obtain the values anymore.
+ */
+class MappedFileCacheProvider @JvmOverloads constructor(
+        private val directory: File,
+        private val segmentSize: Int = DEFAULT_SEGMENT_SIZE,
+        compactionPeriod: Long = DEFAULT_COMPACTION_PERIOD,
+        private val scheduler: Scheduler = Schedulers.io()
+) : IStreamCacheProvider, Closeable {
+    private val index = ConcurrentHashMap<String, Location>()
+    private val segments = TreeMap<Int, Segment>()
+    private var active: Segment
+    private val compaction: Disposable?
+    @Volatile private var closed = false
+
+    val segmentsCount: Int
+        get() = synchronized(this) { segments.size }
+
+    init {
+        directory.mkdirs()
+        directory.listFiles().orEmpty()
+                .mapNotNull { file -> SEGMENT_NAME.matchEntire(file.name)?.let { it.groupValues[1].toInt() to file } }
+                .sortedBy { it.first }
+                .forEach { (id, file) -> replay(openSegment(id, file, 0)) }
+        active = segments.lastEntry()?.value ?: openSegment(0, segmentFile(0), segmentSize)
+        compaction = if (compactionPeriod > 0) {
+            scheduler.schedulePeriodicallyDirect({ compact() }, compactionPeriod, compactionPeriod, TimeUnit.MILLISECONDS)
+        } else {
+            null
+        }
+    }
+
+    override fun store(key: String, value: String, expiresAfter: Long) {
+        val keyBytes = key.toByteArray(Charsets.UTF_8)
+        val valueBytes = ByteBuffer.wrap(value.toByteArray(Charsets.UTF_8))
+        try {
+            synchronized(this) {
+                if (!closed) index[key] = append(keyBytes, valueBytes, expiresAt(expiresAfter))
+            }
+        } catch (e: IOException) {
+            // todo log error
+            e.printStackTrace()
+        }
+    }
+
+    override fun obtain(key: String) = acquire(key)?.let { location ->
+        try {
+            Charsets.UTF_8.decode(location.value()).toString()
+        } finally {
+            location.segment.release()
+        }
+    }
+
+    /**
+     * The stream reads the mapped memory without copying. Close it, so the segment can be unmapped after the compaction.
+     */
+    override fun obtainStream(key: String): InputStream? = acquire(key)?.let(::SegmentInputStream)
+
+    /**
+     * Rewrites the live records of the segments which are less than half alive to the end of the active segment.
+     * The rewritten segments are deleted and unmapped as soon as their streams are closed.
+     *
+     * The expired records of the rewritten segments are replaced with the tombstones if there are the earlier segments,
+     * otherwise the older records of the same keys would come back on the next start.
+     */
+    fun compact() {
+        val candidates = synchronized(this) {
+            if (closed) return
+            val now = now()
+            val liveBytes = HashMap<Segment, Long>()
+            index.values.forEach { location ->
+                if (location.expiresAt > now) {
+                    liveBytes[location.segment] = (liveBytes[location.segment] ?: 0L) + location.recordSize
+                }
+            }
+            segments.values.filter { it !== active && (liveBytes[it] ?: 0L) * 2 < it.position }
+        }
+
+        candidates.forEach { segment ->
+            try {
+                synchronized(this) { if (!closed) rewrite(segment) }
+            } catch (e: IOException) {
+                // todo log error
+                e.printStackTrace()
+            }
+        }
+    }
+
+    /**
+     * Stops the compaction, flushes the active segment and unmaps the segments, the ones with the open streams
+     * are unmapped when the streams are closed
+     */
+    override fun close() {
+        compaction?.dispose()
+        synchronized(this) {
+            if (closed) return
+            closed = true
+            active.buffer.force()
+            index.clear()
+            segments.values.forEach { it.retire() }
+            segments.clear()
+        }
+    }
+
+    /**
+     * @return the location of the live record, its segment must be released after the reading
+     */
+    private fun acquire(key: String): Location? {
+        while (!closed) {
+            val location = index[key] ?: return null
+            if (location.expiresAt <= now()) return null
+            // the retired segment is already rewritten, so the index has the new location
+            if (location.segment.acquire()) return location
+        }
+        return null
+    }
+
+    private fun rewrite(segment: Segment) {
+        val now = now()
+        val hasEarlierSegments = segments.firstKey() < segment.id
+        index.entries.filter { it.value.segment === segment }.forEach { (key, location) ->
+            when {
+                location.expiresAt > now -> index[key] = append(key.toByteArray(Charsets.UTF_8), location.value(), location.expiresAt)
+                hasEarlierSegments -> index[key] = append(key.toByteArray(Charsets.UTF_8), ByteBuffer.allocate(0), 0L)
+                else -> index.remove(key, location)
+            }
+        }
+        segments.remove(segment.id)
+        segment.file.delete()
+        segment.retire()
+    }
+
+    private fun append(key: ByteArray, value: ByteBuffer, expiresAt: Long): Location {
+        val recordSize = HEADER_SIZE + key.size + value.remaining()
+        if (active.position + recordSize > active.buffer.capacity()) {
+            active.buffer.force()
+            val id = active.id + 1
+            active = openSegment(id, segmentFile(id), Math.max(segmentSize, recordSize))
+        }
+
+        val offset = active.position
+        val valueLength = value.remaining()
+        val buffer = active.buffer.duplicate()
+        (buffer as Buffer).position(offset + HEADER_SIZE)
+        buffer.put(key)
+        buffer.put(value)
+        buffer.putInt(offset + 4, valueLength)
+        buffer.putLong(offset + 8, expiresAt)
+        buffer.putInt(offset, key.size + 1)
+        active.position += recordSize
+
+        return Location(active, offset + HEADER_SIZE + key.size, valueLength, recordSize, expiresAt)
+    }
+
+    private fun replay(segment: Segment) {
+        val buffer = segment.buffer.duplicate()
+        var offset = 0
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            val keyLength = buffer.getInt(offset) - 1
+            val valueLength = buffer.getInt(offset + 4)
+            val recordSize = HEADER_SIZE + keyLength + valueLength
+            if (keyLength < 0 || valueLength < 0 || offset + recordSize > buffer.capacity()) break
+
+            val key = ByteArray(keyLength)
+            (buffer as Buffer).position(offset + HEADER_SIZE)
+            buffer.get(key)
+            index[String(key, Charsets.UTF_8)] = Location(segment, offset + HEADER_SIZE + keyLength, valueLength, recordSize, buffer.getLong(offset + 8))
+            offset += recordSize
+        }
+        segment.position = offset
+    }
+
+    private fun openSegment(id: Int, file: File, size: Int): Segment {
+        val buffer = RandomAccessFile(file, "rw").use {
+            if (it.length() < size) it.setLength(size.toLong())
+            it.channel.map(FileChannel.MapMode.READ_WRITE, 0, it.length())
+        }
+        return Segment(id, file, buffer).also { segments[id] = it }
+    }
+
+    private fun segmentFile(id: Int) = File(directory, "cache-$id.segment")
+
+    private fun expiresAt(expiresAfter: Long): Long {
+        val now = now()
+        val expires = now + expiresAfter
+        return if (expires < expiresAfter) Long.MAX_VALUE else expires
+    }
+
+    private fun now() = scheduler.now(TimeUnit.MILLISECONDS)
+
+    private class Segment(val id: Int, val file: File, val buffer: MappedByteBuffer) {
+        var position = 0
+        private var readers = 0
+        private var retired = false
+
+        /**
+         * @return false if the segment is retired
+         */
+        @Synchronized
+        fun acquire(): Boolean {
+            if (retired) return false
+            readers++
+            return true
+        }
+
+        @Synchronized
+        fun release() {
+            if (--readers == 0 && retired) unmap(buffer)
+        }
+
+        /**
+         * The buffer is unmapped when the last reader releases it
+         */
+        @Synchronized
+        fun retire() {
+            retired = true
+            if (readers == 0) unmap(buffer)
+        }
+    }
+
+    private class Location(val segment: Segment, val offset: Int, val length: Int, val recordSize: Int, val expiresAt: Long) {
+        // The Buffer casts keep the Java 8 signatures of limit and position
+        fun value(): ByteBuffer {
+            val buffer = segment.buffer.duplicate()
+            (buffer as Buffer).limit(offset + length).position(offset)
+            return buffer.slice()
+        }
+    }
+
+    private class SegmentInputStream(private val location: Location) : InputStream() {
+        private val buffer = location.value()
+        private var closed = false
+
+        override fun read() = if (buffer.hasRemaining()) buffer.get().toInt() and 0xFF else -1
+
+        override fun read(bytes: ByteArray, offset: Int, length: Int): Int {
+            if (length == 0) return 0
+            if (!buffer.hasRemaining()) return -1
+            val count = Math.min(length, buffer.remaining())
+            buffer.get(bytes, offset, count)
+            return count
+        }
+
+        override fun available() = buffer.remaining()
+
+        override fun close() {
+            if (closed) return
+            closed = true
+            location.segment.release()
+        }
+    }
+
+    companion object {
+        const val DEFAULT_SEGMENT_SIZE = 4 shl 20
+        const val DEFAULT_COMPACTION_PERIOD = 10 * 60 * 1000L
+
+        private const val HEADER_SIZE = 16
+        private val SEGMENT_NAME = Regex("cache-(\\d+)\\.segment")
+
+        /**
+         * Releases the mapping at once instead of waiting for the garbage collector, which keeps the deleted files
+         * mapped. There is no public api for it: Java 9+ has Unsafe.invokeCleaner, the older versions
+         * have the cleaner of the buffer. If neither works the mapping is left to the garbage collector.
+         */
+        private fun unmap(buffer: MappedByteBuffer) {
+            try {
+                val unsafeClass = Class.forName("sun.misc.Unsafe")
+                val invokeCleaner = try {
+                    unsafeClass.getMethod("invokeCleaner", ByteBuffer::class.java)
+                } catch (e: NoSuchMethodException) {
+                    null
+                }
+                if (invokeCleaner != null) {
+                    val unsafe = unsafeClass.getDeclaredField("theUnsafe").apply { isAccessible = true }.get(null)
+                    invokeCleaner.invoke(unsafe, buffer)
+                } else {
+                    val cleaner = buffer.javaClass.getMethod("cleaner").apply { isAccessible = true }.invoke(buffer) ?: return
+                    cleaner.javaClass.getMethod("clean").apply { isAccessible = true }.invoke(cleaner)
+                }
+            } catch (e: Exception) {
+                // the garbage collector unmaps it
+            }
+        }
+    }
+}
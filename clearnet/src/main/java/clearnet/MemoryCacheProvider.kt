@@ -0,0 +1,92 @@
+package clearnet
+
+import clearnet.interfaces.ICacheProvider
+import clearnet.interfaces.IResultCacheProvider
+import clearnet.interfaces.IResultCacheProvider.CachedResult
+import io.reactivex.Scheduler
+import io.reactivex.schedulers.Schedulers
+import java.lang.reflect.Type
+import java.util.concurrent.TimeUnit
+
+/**
+ * The in-memory level in front of the [provider]. It holds the deserialized results by the cache key and the result type,
+ * so the hits skip the provider and the deserialization. The same result instance is delivered on every hit,
+ * see [IResultCacheProvider] for the read-only contract.
+ *
+ * The results are written through to the [provider]. The least recently used ones are evicted when the total weight,
+ * the length of their serialized form, exceeds [maxWeight].
+ *
+ * @param loadedExpiresAfter how long the results which have been read from the [provider] stay in memory.
+ * The provider doesn't tell when they expire, so they aren't kept by default. A longer time lets them outlive
+ * their expiration in the provider by up to that time.
+ */
+class MemoryCacheProvider @JvmOverloads constructor(
+        private val provider: ICacheProvider,
+        private val maxWeight: Long = DEFAULT_MAX_WEIGHT,
+        private val loadedExpiresAfter: Long = 0L,
+        private val scheduler: Scheduler = Schedulers.trampoline()
+) : IResultCacheProvider {
+    private val entries = LinkedHashMap<String, Entry>(16, 0.75f, true)
+    private var weight = 0L
+
+    val size: Int
+        get() = synchronized(this) { entries.size }
+
+    override fun store(key: String, value: String, expiresAfter: Long) {
+        synchronized(this) { remove(key) }
+        provider.store(key, value, expiresAfter)
+    }
+
+    override fun obtain(key: String) = provider.obtain(key)
+
+    override fun storeResult(key: String, type: Type, result: Any?, value: String, expiresAfter: Long) {
+        put(key, Entry(type, result, value.length.toLong(), expiresAt(expiresAfter)))
+        provider.store(key, value, expiresAfter)
+    }
+
+    override fun onLoaded(key: String, type: Type, result: Any?, value: String) {
+        if (loadedExpiresAfter > 0) put(key, Entry(type, result, value.length.toLong(), expiresAt(loadedExpiresAfter)))
+    }
+
+    /**
+     * @return null if there is no result of the [type] in memory
+     */
+    override fun obtainResult(key: String, type: Type): CachedResult? = synchronized(this) {
+        val entry = entries[key] ?: return null
+        if (entry.expiresAt <= now()) {
+            remove(key)
+            return null
+        }
+        if (entry.type == type) CachedResult(entry.result) else null
+    }
+
+    private fun put(key: String, entry: Entry) = synchronized(this) {
+        remove(key)
+        if (entry.weight > maxWeight) return
+
+        entries[key] = entry
+        weight += entry.weight
+        val iterator = entries.values.iterator()
+        while (weight > maxWeight) {
+            weight -= iterator.next().weight
+            iterator.remove()
+        }
+    }
+
+    private fun remove(key: String) {
+        entries.remove(key)?.let { weight -= it.weight }
+    }
+
+    private fun expiresAt(expiresAfter: Long): Long {
+        val expires = now() + expiresAfter
+        return if (expires < expiresAfter) Long.MAX_VALUE else expires
+    }
+
+    private fun now() = scheduler.now(TimeUnit.MILLISECONDS)
+
+    private class Entry(val type: Type, val result: Any?, val weight: Long, val expiresAt: Long)
+
+    companion object {
+        const val DEFAULT_MAX_WEIGHT = 1L shl 20
+    }
+}
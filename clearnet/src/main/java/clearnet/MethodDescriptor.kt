@@ -0,0 +1,164 @@
+package clearnet
+
+import clearnet.annotations.*
+import clearnet.annotations.Parameter
+import clearnet.annotations.NoBatch
+import clearnet.annotations.RPCMethodScope
+import clearnet.conversion.DefaultConversionStrategy
+import clearnet.interfaces.ConversionStrategy
+import clearnet.interfaces.RequestCallback
+import clearnet.model.MergedInvocationStrategy
+import io.reactivex.Observable
+import java.lang.reflect.Method
+import java.lang.reflect.ParameterizedType
+import java.lang.reflect.Type
+
+/**
+ * Everything the reflective proxy needs to know about an api method.
+ * It's resolved once per [Method], only the arguments are processed on each invocation.
+ */
+internal class MethodDescriptor(method: Method, rpcMethodScope: String?) {
+    val remoteMethod: String = retrieveRemoteMethod(method, rpcMethodScope)
+    val defaultParameters: Array<DefaultParameter> = retrieveDefaultParameters(method)
+    val invocationStrategy: MergedInvocationStrategy
+    val expiresAfter: Long
+    val conversionStrategy: ConversionStrategy = retrieveConversionStrategy(method)
+    val bindable = method.getAnnotation(NotBindable::class.java) == null
+    val batchable = method.getAnnotation(NoBatch::class.java) == null
+    val returnsObservable = isReturnsObservable(method)
+
+    private val name = method.name
+    private val method = method
+
+    /**
+     * [Parameter] and [Body] annotations of each method parameter in the declaration order
+     */
+    private val bindings: Array<Array<Annotation>> = method.parameterAnnotations.map { annotations ->
+        annotations.filter { it is Parameter || it is Body }.toTypedArray()
+    }.toTypedArray()
+
+    /**
+     * The callback is expected in the last parameter without bindings
+     */
+    private val expectedCallbackIndex = bindings.indexOfLast { it.isEmpty() }
+    private val expectedResultType: Type by lazy { resolveResultType(method, expectedCallbackIndex) }
+
+    init {
+        val (strategy, expiration) = retrieveInvocationStrategyAndExpiration(method)
+        invocationStrategy = strategy
+        expiresAfter = expiration
+    }
+
+    fun createRequestBody(): RPCRequest {
+        val requestBody = RPCRequest(remoteMethod)
+        defaultParameters.forEach {
+            requestBody.addParameter(it.key, it.value)
+        }
+        return requestBody
+    }
+
+    fun fillRequestBodyAndFindListeners(args: Array<out Any>?, requestBody: RPCRequest): Pair<RequestCallback<Any?>?, Type> {
+        var requestCallback: RequestCallback<Any?>? = null
+
+        var callbackIndex = -1
+        if (args != null) {
+            for (i in args.indices) {
+                val annotations = bindings[i]
+                for (annotation in annotations) {
+                    if (annotation is Parameter) {
+                        requestBody.addParameter(annotation.value, args[i])
+                    } else {
+                        requestBody.setParamsBody(args[i])
+                    }
+                }
+
+                if (annotations.isNotEmpty()) continue
+
+                if (args[i] is RequestCallback<*>) {
+                    requestCallback = args[i] as RequestCallback<Any?>
+                    callbackIndex = i
+                } else {
+                    throw IllegalArgumentException("All parameters in method $name must have the Parameter annotation")
+                }
+            }
+        }
+
+        val type = if (callbackIndex == expectedCallbackIndex) expectedResultType else resolveResultType(method, callbackIndex)
+        return Pair(requestCallback, type)
+    }
+
+    companion object {
+        fun resolveResultType(method: Method, callbackIndex: Int): Type = when {
+            callbackIndex >= 0 -> getGenericParameterType(method, callbackIndex)
+            isReturnsObservable(method) -> getGenericReturnType(method)
+            else -> method.getAnnotation(ResultType::class.java)?.value?.java as Type? ?: Any::class.java
+        }
+
+        fun createConversionStrategy(strategyClass: Class<*>, parameter: String): ConversionStrategy {
+            val result = strategyClass.newInstance() as ConversionStrategy
+            result.init(parameter)
+            return result
+        }
+
+        private fun retrieveRemoteMethod(method: Method, rpcMethodScope: String?): String {
+            val methodAnnotation = method.getAnnotation(RPCMethod::class.java)
+            if (methodAnnotation != null) {
+                return methodAnnotation.value
+            }
+
+            val scope = method.getAnnotation(RPCMethodScope::class.java)?.value ?: rpcMethodScope
+
+            if (scope != null) {
+                return if (scope.isEmpty()) method.name else "$scope.${method.name}"
+            } else {
+                throw IllegalArgumentException("Method " + method.name + " must be annotated with @" + RPCMethod::class.java.name + " or @" + RPCMethodScope::class.java.name + " annotation")
+            }
+        }
+
+        private fun retrieveDefaultParameters(method: Method): Array<DefaultParameter> {
+            val defaultParameter = method.getAnnotation(DefaultParameter::class.java)
+            val defaultParameters = method.getAnnotation(DefaultParameters::class.java)
+
+            if (defaultParameter == null || defaultParameters == null) {
+                return if (defaultParameter == null) defaultParameters?.value ?: arrayOf() else arrayOf(defaultParameter)
+            } else {
+                throw IllegalArgumentException("Method ${method.name} must have either DefaultParameter annotation or DefaultParameters but not both")
+            }
+        }
+
+        private fun retrieveConversionStrategy(method: Method): ConversionStrategy {
+            val conversionStrategyAnnotation = method.getAnnotation(clearnet.annotations.ConversionStrategy::class.java)
+            return if (conversionStrategyAnnotation == null) {
+                DefaultConversionStrategy()
+            } else {
+                createConversionStrategy(conversionStrategyAnnotation.value.java, conversionStrategyAnnotation.parameter)
+            }
+        }
+
+        private fun retrieveInvocationStrategyAndExpiration(method: Method): Pair<MergedInvocationStrategy, Long> {
+            var invocationStrategies: Array<InvocationStrategy> = emptyArray()
+            var expiresAfter: Long = 0
+            val annotation = method.getAnnotation(clearnet.annotations.InvocationStrategy::class.java)
+            if (annotation != null) {
+                invocationStrategies = annotation.value
+                expiresAfter = annotation.cacheExpiresAfter
+            }
+
+            return if (invocationStrategies.isEmpty()) {
+                Pair(MergedInvocationStrategy(arrayOf(InvocationStrategy.NO_CACHE)), expiresAfter)
+            } else {
+                Pair(MergedInvocationStrategy(invocationStrategies), expiresAfter)
+            }
+        }
+
+        private fun isReturnsObservable(method: Method) = method.returnType == Observable::class.java
+
+        private fun getGenericParameterType(method: Method, parameterIndex: Int): Type {
+            return (method.genericParameterTypes[parameterIndex] as ParameterizedType).actualTypeArguments[0]
+        }
+
+        private fun getGenericReturnType(method: Method): Type {
+            return (method.genericReturnType as ParameterizedType).actualTypeArguments[0]
+        }
+    }
+}
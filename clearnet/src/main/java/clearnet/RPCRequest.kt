@@ -3,14 +3,14 @@ package clearnet
 import java.util.HashMap
 import java.util.concurrent.atomic.AtomicLong
 
-class RPCRequest(val method: String) {
-    var id: Long = idCounter.incrementAndGet()
+class RPCRequest private constructor(val method: String, var id: Long) {
     private val jsonrpc = "2.0"
     var params: Any? = null
         private set
 
     @Transient private var bodyState: Boolean = false
 
+    constructor(method: String) : this(method, idCounter.incrementAndGet())
 
     fun addParameter(name: String, value: Any?): RPCRequest {
         if (bodyState) throw IllegalStateException("The body already has been set")
@@ -27,6 +27,14 @@ class RPCRequest(val method: String) {
         bodyState = true
     }
 
+    /**
+     * Shallow copy which shares the params with this request
+     */
+    internal fun copy(id: Long) = RPCRequest(method, id).also {
+        it.params = params
+        it.bodyState = bodyState
+    }
+
     override fun equals(other: Any?): Boolean {
         if (this === other) return true
         if (other !is RPCRequest) return false
@@ -0,0 +1,46 @@
+package clearnet
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Counters of a [Core] worker shard. Compare the counters of the shards to see how evenly the cache keys are spread.
+ */
+class ShardCounters internal constructor() {
+    private val started = AtomicLong()
+    private val bound = AtomicLong()
+    private val active = AtomicInteger()
+
+    /**
+     * Count of the tasks started in the shard
+     */
+    val startedTasks: Long
+        get() = started.get()
+
+    /**
+     * Count of the requests which were bound to the running tasks instead of starting new ones
+     */
+    val boundRequests: Long
+        get() = bound.get()
+
+    /**
+     * Count of the started tasks which aren't finished yet
+     */
+    val activeTasks: Int
+        get() = active.get()
+
+    internal fun onStarted() {
+        started.incrementAndGet()
+        active.incrementAndGet()
+    }
+
+    internal fun onBound() {
+        bound.incrementAndGet()
+    }
+
+    internal fun onFinished() {
+        active.decrementAndGet()
+    }
+
+    override fun toString() = "started: $startedTasks, bound: $boundRequests, active: $activeTasks"
+}
@@ -0,0 +1,64 @@
+package clearnet
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+/**
+ * Lock-free storage of the [CoreTask]s which are in flight.
+ * Insertion and removal don't copy the whole storage, only the small bucket of tasks with the same cache key.
+ */
+class TaskRegistry internal constructor() {
+    private val byId: ConcurrentMap<Long, CoreTask> = ConcurrentHashMap()
+
+    /**
+     * Arrays are never modified, they are replaced entirely
+     */
+    private val byKey: ConcurrentMap<TaskKey, Array<CoreTask>> = ConcurrentHashMap()
+
+    private val inFlight = AtomicIntegerArray(InvocationBlockType.values().size)
+
+    val size: Int
+        get() = byId.size
+
+    operator fun get(id: Long): CoreTask? = byId[id]
+
+    fun find(method: String, cacheKey: String): List<CoreTask> = byKey[TaskKey(method, cacheKey)]?.asList() ?: emptyList()
+
+    /**
+     * @return count of the tasks which are placed to the queue of [index] or are processed by its block
+     */
+    fun inFlight(index: InvocationBlockType) = inFlight[index.ordinal]
+
+    fun snapshot(): List<CoreTask> = ArrayList(byId.values)
+
+    internal fun add(task: CoreTask) {
+        byId[task.id] = task
+        val key = task.key()
+        while (true) {
+            val current = byKey.putIfAbsent(key, arrayOf(task)) ?: return
+            if (byKey.replace(key, current, current + task)) return
+        }
+    }
+
+    internal fun remove(task: CoreTask) {
+        if (byId.remove(task.id) == null) return
+        val key = task.key()
+        while (true) {
+            val current = byKey[key] ?: return
+            if (task !in current) return
+            val removed = if (current.size == 1) byKey.remove(key, current)
+            else byKey.replace(key, current, current.filter { it !== task }.toTypedArray())
+            if (removed) return
+        }
+    }
+
+    internal fun onMove(from: InvocationBlockType?, to: Array<InvocationBlockType>) {
+        if (from != null) inFlight.decrementAndGet(from.ordinal)
+        to.forEach { inFlight.incrementAndGet(it.ordinal) }
+    }
+
+    private fun CoreTask.key() = TaskKey(getRequestIdentifier(), cacheKey)
+
+    private data class TaskKey(val method: String, val cacheKey: String)
+}
@@ -0,0 +1,148 @@
+package clearnet
+
+import clearnet.interfaces.IBatchCacheProvider
+import clearnet.interfaces.ICacheProvider
+import java.io.Closeable
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Stores the values to the [provider] in the background, so the [clearnet.blocks.SaveToCacheBlock]
+ * doesn't wait for the disk. The values which are waiting for the write are returned by [obtain].
+ *
+ * Writes of the same key are coalesced. The waiting values are written together by [IBatchCacheProvider.storeAll]
+ * if the [provider] supports it. When [maxBacklog] values are waiting the new keys are handled by the [dropPolicy],
+ * the dropped values are never written and the [provider] keeps its previous values of their keys,
+ * so [obtain] can return a stale value of a dropped key until it expires or is stored again.
+ *
+ * [close] writes the waiting values on the calling thread, the values stored after it are written through.
+ *
+ * @param executor runs the writes one by one, by default it's a single thread which is shut down by [close]
+ */
+class WriteBehindCacheProvider @JvmOverloads constructor(
+        private val provider: ICacheProvider,
+        private val maxBacklog: Int = DEFAULT_MAX_BACKLOG,
+        private val dropPolicy: DropPolicy = DropPolicy.DROP_OLDEST,
+        executor: Executor? = null
+) : ICacheProvider, Closeable {
+    private val ownExecutor: ExecutorService? = if (executor == null) {
+        Executors.newSingleThreadExecutor { Thread(it, "ClearNet cache writer").apply { isDaemon = true } }
+    } else {
+        null
+    }
+    private val executor: Executor = executor ?: ownExecutor!!
+
+    /**
+     * The batches are taken and written under this lock, so [close] can't overtake a running write
+     */
+    private val writeLock = Any()
+    private var pending = LinkedHashMap<String, PendingValue>()
+    private var writing: Map<String, PendingValue> = emptyMap()
+    private var scheduled = false
+    private var closed = false
+
+    var dropped = 0L
+        private set
+
+    override fun store(key: String, value: String, expiresAfter: Long) {
+        val schedule = synchronized(this) {
+            if (closed) {
+                null
+            } else {
+                if (key !in pending && pending.size >= maxBacklog) {
+                    dropped++
+                    when (dropPolicy) {
+                        DropPolicy.DROP_NEWEST -> return
+                        DropPolicy.DROP_OLDEST -> pending.remove(pending.keys.first())
+                    }
+                }
+                pending.remove(key)
+                pending[key] = PendingValue(value, expiresAt(expiresAfter))
+                !scheduled.also { scheduled = true }
+            }
+        }
+        when (schedule) {
+            null -> provider.store(key, value, expiresAfter)
+            true -> executor.execute(this::writePending)
+        }
+    }
+
+    override fun obtain(key: String): String? {
+        synchronized(this) {
+            (pending[key] ?: writing[key])?.let {
+                return if (it.expiresAt > System.currentTimeMillis()) it.value else null
+            }
+        }
+        return provider.obtain(key)
+    }
+
+    /**
+     * Writes the waiting values and shuts down the own executor
+     */
+    override fun close() {
+        synchronized(this) { closed = true }
+        writeBatch()
+        ownExecutor?.shutdown()
+    }
+
+    private fun writePending() {
+        try {
+            writeBatch()
+        } finally {
+            val reschedule = synchronized(this) {
+                scheduled = !closed && pending.isNotEmpty()
+                scheduled
+            }
+            if (reschedule) executor.execute(this::writePending)
+        }
+    }
+
+    private fun writeBatch() = synchronized(writeLock) {
+        val values = synchronized(this) {
+            writing = pending
+            pending = LinkedHashMap()
+            writing
+        }
+        try {
+            if (values.isNotEmpty()) write(values)
+        } catch (e: Exception) {
+            // todo log error
+            e.printStackTrace()
+        } finally {
+            synchronized(this) { writing = emptyMap() }
+        }
+    }
+
+    private fun write(values: Map<String, PendingValue>) {
+        val now = System.currentTimeMillis()
+        val entries = values.map { (key, value) -> IBatchCacheProvider.Entry(key, value.value, Math.max(value.expiresAt - now, 0L)) }
+        if (provider is IBatchCacheProvider) {
+            provider.storeAll(entries)
+        } else {
+            entries.forEach { provider.store(it.key, it.value, it.expiresAfter) }
+        }
+    }
+
+    private fun expiresAt(expiresAfter: Long): Long {
+        val expires = System.currentTimeMillis() + expiresAfter
+        return if (expires < expiresAfter) Long.MAX_VALUE else expires
+    }
+
+    private class PendingValue(val value: String, val expiresAt: Long)
+
+    enum class DropPolicy {
+        /**
+         * The longest waiting value is dropped to make room for the new one
+         */
+        DROP_OLDEST,
+        /**
+         * The new value is dropped
+         */
+        DROP_NEWEST
+    }
+
+    companion object {
+        const val DEFAULT_MAX_BACKLOG = 256
+    }
+}
@@ -5,7 +5,10 @@ import clearnet.InvocationBlockType
 import clearnet.error.ConversionException
 import clearnet.interfaces.ICacheProvider
 import clearnet.interfaces.IInvocationBlock
+import clearnet.interfaces.IResultCacheProvider
 import clearnet.interfaces.ISerializer
+import clearnet.interfaces.IStreamCacheProvider
+import clearnet.interfaces.IStreamSerializer
 
 class GetFromCacheBlock(
         private val cacheProvider: ICacheProvider,
@@ -14,13 +17,45 @@ class GetFromCacheBlock(
     override val invocationBlockType = InvocationBlockType.GET_FROM_CACHE
 
     override fun onEntity(promise: CoreTask.Promise) = with(promise) {
+        if (cacheProvider is IResultCacheProvider) {
+            cacheProvider.obtainResult(taskRef.cacheKey, taskRef.postParams.resultType)?.let {
+                setResult(it.result, null, invocationBlockType)
+                return
+            }
+        }
+        if (cacheProvider is IStreamCacheProvider && converter is IStreamSerializer) {
+            obtainStream(promise, cacheProvider, converter)
+            return
+        }
+
         val responseString = cacheProvider.obtain(taskRef.cacheKey)
 
         if (responseString != null) {
+            try {
+                val result = converter.deserialize(responseString, taskRef.postParams.resultType)
+                if (cacheProvider is IResultCacheProvider) {
+                    cacheProvider.onLoaded(taskRef.cacheKey, taskRef.postParams.resultType, result, responseString)
+                }
+                setResult(result, responseString, invocationBlockType)
+                return
+            } catch (e: ConversionException) {
+                // todo remove cache item
+                // todo log exception
+                e.printStackTrace()
+            }
+        }
+
+        pass(invocationBlockType)
+    }
+
+    private fun obtainStream(promise: CoreTask.Promise, cacheProvider: IStreamCacheProvider, converter: IStreamSerializer) = with(promise) {
+        val responseStream = cacheProvider.obtainStream(taskRef.cacheKey)
+
+        if (responseStream != null) {
             try {
                 setResult(
-                        converter.deserialize(responseString, taskRef.postParams.resultType),
-                        responseString,
+                        responseStream.use { converter.deserialize(it, taskRef.postParams.resultType) },
+                        null,
                         invocationBlockType
                 )
                 return
@@ -33,4 +68,4 @@ class GetFromCacheBlock(
 
         pass(invocationBlockType)
     }
-}
\ No newline at end of file
+}
@@ -4,53 +4,160 @@ import clearnet.*
 import clearnet.error.ClearNetworkException
 import clearnet.error.ConversionException
 import clearnet.error.NetworkException
+import clearnet.error.ResponseErrorException
+import clearnet.error.UnknownExternalException
+import clearnet.conversion.DefaultConversionStrategy
+import clearnet.conversion.JsonScanner
+import clearnet.conversion.JsonSlice
+import clearnet.conversion.JsonStreamScanner
+import clearnet.conversion.RpcResponse
+import clearnet.interfaces.ConversionStrategy
+import clearnet.interfaces.IBatchLimitedRequestExecutor
 import clearnet.interfaces.IBodyValidator
 import clearnet.interfaces.IInvocationBlock
+import clearnet.interfaces.IJsonValueSerializer
+import clearnet.interfaces.IRequestExecutor
 import clearnet.interfaces.ISerializer
+import clearnet.interfaces.IStreamRequestExecutor
+import clearnet.interfaces.IStreamSerializer
+import clearnet.interfaces.JsonValueConversionStrategy
 import clearnet.interfaces.ConversionStrategy.SmartConverter
 import clearnet.interfaces.HeaderObserver
-import org.json.JSONArray
+import clearnet.model.RpcErrorResponse
+import clearnet.model.RpcPostParams
 import org.json.JSONException
-import org.json.JSONObject
 import java.io.IOException
+import java.io.InputStream
+import java.lang.reflect.Type
 import java.util.NoSuchElementException
+import java.util.concurrent.Executor
 
-class GetFromNetBlock(
+/**
+ * @param dispatcher executes the batches for different request executors or batch sizes in parallel
+ * and converts the results of a batch in parallel. By default it's the io executor of the [Core].
+ * @param coalesceNotBindable whether the [annotations.NotBindable] tasks with the same request are sent once
+ * as the bindable ones are
+ */
+class GetFromNetBlock @JvmOverloads constructor(
         private val validator: IBodyValidator,
-        private val converter: ISerializer
+        private val converter: ISerializer,
+        override val queueAlgorithm: IInvocationBlock.QueueAlgorithm = IInvocationBlock.QueueAlgorithm.TIME_THRESHOLD,
+        override val queueTimeThreshold: Long = 100L,
+        override val queueMinTimeThreshold: Long = 0L,
+        override val queueSizeThreshold: Int = Int.MAX_VALUE,
+        private val dispatcher: Executor? = null,
+        private val coalesceNotBindable: Boolean = false
 ) : IInvocationBlock {
     override val invocationBlockType = InvocationBlockType.GET_FROM_NET
-    override val queueAlgorithm = IInvocationBlock.QueueAlgorithm.TIME_THRESHOLD
     private val headersObserver = SimpleHeadersObserver()
 
     fun getHeadersObserver(): HeaderObserver = headersObserver
 
-    override fun onQueueConsumed(promises: List<CoreTask.Promise>) {
-        when {
-            promises.isEmpty() -> return
-            promises.size == 1 -> obtainFromNet(promises[0])
-            checkExecutors(promises) -> groupByBatchSize(promises)
-            else -> {
-                val runningTasks = ArrayList<CoreTask.Promise>()
-                promises.forEach {
-                    if (it.taskRef.postParams.requestExecutor === promises[0].taskRef.postParams.requestExecutor) runningTasks.add(it)
-                    else it.setNextIndex(InvocationBlockType.GET_FROM_NET)
-                }
+    /**
+     * Without the [dispatcher] and the io executor the batches are executed one by one
+     */
+    override fun onQueueConsumed(promises: List<CoreTask.Promise>) = consume(promises, dispatcher)
 
-                if (runningTasks.size == 1) {
-                    obtainFromNet(runningTasks[0])
-                } else {
-                    groupByBatchSize(runningTasks)
-                }
+    override fun onQueueConsumed(promises: List<CoreTask.Promise>, ioExecutor: Executor) = consume(promises, dispatcher ?: ioExecutor)
+
+    /**
+     * The queue is consumed on the io executor already, so the first batch is executed right here
+     * instead of taking one more thread of the [executor] and leaving this one idle
+     */
+    private fun consume(promises: List<CoreTask.Promise>, executor: Executor?) {
+        if (promises.isEmpty()) return
+
+        val batches = splitToBatches(promises)
+        if (executor == null) {
+            batches.forEach { executeBatchSafely(it, null) }
+        } else {
+            batches.subList(1, batches.size).forEach { batch ->
+                executor.execute { executeBatchSafely(batch, executor) }
+            }
+            executeBatchSafely(batches[0], executor)
+        }
+    }
+
+    /**
+     * Groups the requests by the request executor and the batch size, then by compatible headers
+     * and splits the groups into batches
+     */
+    private fun splitToBatches(promises: List<CoreTask.Promise>): List<List<Request>> {
+        val groups = LinkedHashMap<BatchKey, MutableList<HeadersGroup>>()
+        coalesce(promises).forEach {
+            val postParams = it.taskRef.postParams
+            val headersGroups = groups.getOrPut(BatchKey(postParams.requestExecutor, postParams.maxBatchSize)) { ArrayList() }
+            val headersGroup = headersGroups.firstOrNull { group -> group.accepts(postParams.headers) }
+                    ?: HeadersGroup().also { group -> headersGroups += group }
+            headersGroup += it
+        }
+
+        return groups.flatMap { (key, headersGroups) ->
+            val maxLength = (key.requestExecutor as? IBatchLimitedRequestExecutor)?.maxBatchLength ?: Int.MAX_VALUE
+            headersGroups.flatMap { pack(it.promises, Math.max(key.maxBatchSize, 1), maxLength) }
+        }
+    }
+
+    /**
+     * First fit decreasing by the UTF-8 length of the bodies: the longest requests are placed first,
+     * each into the first batch which has room for it. The requests keep their order inside the batches.
+     */
+    private fun pack(requests: List<Request>, maxSize: Int, maxLength: Int): List<List<Request>> {
+        if (maxLength == Int.MAX_VALUE) return requests.chunked(maxSize)
+
+        val batches = ArrayList<LengthBatch>()
+        requests.indices.sortedByDescending { requests[it].bodyLength }.forEach { index ->
+            val length = requests[index].bodyLength + 1   // with the comma or the bracket
+            val batch = batches.firstOrNull { it.indexes.size < maxSize && it.length + length <= maxLength }
+                    ?: LengthBatch().also { batches += it }
+            batch.indexes += index
+            batch.length += length
+        }
+        return batches.map { batch -> batch.indexes.sorted() }
+                .sortedBy { it[0] }
+                .map { indexes -> indexes.map { requests[it] } }
+    }
+
+    /**
+     * The tasks with the same executor, cache key, result type, conversion strategy and headers are sent
+     * as a single request. Each of them gets its own result converted from the shared response.
+     */
+    private fun coalesce(promises: List<CoreTask.Promise>): Collection<Request> {
+        val requests = LinkedHashMap<Any, Request>(promises.size)
+        promises.forEach {
+            val postParams = it.taskRef.postParams
+            val key: Any = if (postParams.bindable || coalesceNotBindable) {
+                RequestKey(postParams.requestExecutor, it.taskRef.cacheKey, postParams.resultType, postParams.conversionStrategy, postParams.headers)
+            } else {
+                it
             }
+            val request = requests[key]
+            if (request == null) requests[key] = Request(it) else request.duplicates += it
         }
+        return requests.values
     }
 
-    private fun checkExecutors(promises: List<CoreTask.Promise>): Boolean {
-        return (1 until promises.size).none { promises[it - 1].taskRef.postParams.requestExecutor !== promises[it].taskRef.postParams.requestExecutor }
+    /**
+     * A failure fails only the tasks of its own batch, the other batches of the window may be running already
+     */
+    private fun executeBatchSafely(promises: List<Request>, executor: Executor?) {
+        try {
+            executeSequenceOnSingleExecutor(promises, executor)
+        } catch (e: Throwable) {
+            promises.forEach {
+                it.setError(UnknownExternalException(e.message), invocationBlockType)
+            }
+        }
     }
 
-    private fun obtainFromNet(promise: CoreTask.Promise) = with(promise.taskRef.postParams) {
+    private fun obtainFromNet(promise: Request) = with(promise.taskRef.postParams) {
+        // the stream is read once, so the duplicates which need their own results take the string path
+        if (promise.duplicates.isEmpty() && httpRequestType == "POST" && requestExecutor is IStreamRequestExecutor && converter is IStreamSerializer
+                && conversionStrategy.javaClass == DefaultConversionStrategy::class.java
+                && InvocationBlockType.SAVE_TO_CACHE !in invocationStrategy[invocationBlockType][true]) {
+            obtainStreamFromNet(promise, requestExecutor as IStreamRequestExecutor, converter)
+            return
+        }
         try {
             val responseString: String
             try {
@@ -65,135 +172,357 @@ class GetFromNetBlock(
                 throw NetworkException(e)
             }
 
-            val stringResult = SmartConverter.getStringResultOrThrow(converter, responseString, conversionStrategy)
-            val result = converter.deserialize(stringResult, resultType)
-            validator.validate(result)
-
-            promise.setResult(result, stringResult, invocationBlockType)
+            convertAndDeliver(promise, readResponse(responseString))
         } catch (e: ClearNetworkException) {
             promise.setError(e, invocationBlockType)
         }
     }
 
-    private fun groupByBatchSize(promises: List<CoreTask.Promise>) {
-        val executingList = mutableListOf<CoreTask.Promise>()
-        var max = promises[0].taskRef.postParams.maxBatchSize
-
-        promises.forEach {
-            if (executingList.size < max && it.taskRef.postParams.maxBatchSize > executingList.size) {
-                executingList += it
-                if (it.taskRef.postParams.maxBatchSize < max) max = it.taskRef.postParams.maxBatchSize
-            } else {
-                it.setNextIndex(InvocationBlockType.GET_FROM_NET)
+    /**
+     * The result is deserialized right from the response stream, so there is no plain result for the cache
+     */
+    private fun obtainStreamFromNet(promise: Request, requestExecutor: IStreamRequestExecutor, serializer: IStreamSerializer) = with(promise.taskRef.postParams) {
+        try {
+            val result = try {
+                val response = requestExecutor.executePostStream(promise.taskRef.requestKey, headers, requestParams)
+                response.first.use {
+                    headersObserver.propagateHeaders(requestTypeIdentifier, response.second)
+                    readStreamResult(it, resultType, serializer)
+                }
+            } catch (e: IOException) {
+                throw NetworkException(e)
+            } catch (e: JSONException) {
+                throw ConversionException(e)
             }
-        }
+            validator.validate(result)
 
-        trimAndExecuteOnSingleExecutor(executingList)
+            promise.setLazyResult(result, { null }, invocationBlockType)
+        } catch (e: ClearNetworkException) {
+            promise.setError(e, invocationBlockType)
+        }
     }
 
-    private fun trimAndExecuteOnSingleExecutor(promises: List<CoreTask.Promise>) {
-        val maxBatchSize = promises[0].taskRef.postParams.maxBatchSize
-        if (promises.size > maxBatchSize) {
-            val runningList = promises.subList(0, maxBatchSize)
-            val overflowList = promises.subList(maxBatchSize, promises.size)
-            overflowList.forEach { it.setNextIndex(InvocationBlockType.GET_FROM_NET) }
-            executeSequenceOnSingleExecutor(runningList)
-        } else {
-            executeSequenceOnSingleExecutor(promises)
+    /**
+     * The same as the [DefaultConversionStrategy]: the error has priority over the result
+     * and a missing result is deserialized from the empty string
+     */
+    @Throws(ClearNetworkException::class, IOException::class)
+    private fun readStreamResult(input: InputStream, resultType: Type, serializer: IStreamSerializer): Any? {
+        val scanner = JsonStreamScanner(input)
+        var result: Any? = null
+        var hasResult = false
+        var error: JsonSlice? = null
+        scanner.readObject { name ->
+            when (name) {
+                "result" -> {
+                    hasResult = true
+                    result = when (scanner.peek()) {
+                        '{', '[' -> scanner.valueStream().use { serializer.deserialize(it, resultType) }
+                        else -> serializer.deserialize(scanner.readValue().optString(), resultType)
+                    }
+                }
+                "error" -> error = scanner.readValue()
+                else -> scanner.skipValue()
+            }
+        }
+        error?.let {
+            throw ResponseErrorException(serializer.deserialize(it.optString(), RpcErrorResponse::class.java))
         }
+        return if (hasResult) result else serializer.deserialize("", resultType)
     }
 
-    private fun executeSequenceOnSingleExecutor(promises: List<CoreTask.Promise>) {
+    private fun executeSequenceOnSingleExecutor(promises: List<Request>, executor: Executor?) {
         if (promises.size == 1) { // in case of maxBatchSize == 1
             obtainFromNet(promises[0])
             return
         }
+        val requestExecutor = promises[0].taskRef.postParams.requestExecutor
+        if (requestExecutor is IStreamRequestExecutor) {
+            executeStreamBatch(promises, requestExecutor, executor)
+            return
+        }
         try {
             val result: String
-            val tasksToWork = promises.toMutableList()
             try {
-                val conflictedHeadersTasks = mutableListOf<CoreTask.Promise>()
-                val combinedHeaders = combineHeaders(promises, conflictedHeadersTasks)
-                conflictedHeadersTasks.forEach { it ->
-                    it.setNextIndex(InvocationBlockType.GET_FROM_NET)
-                }
-                tasksToWork.removeAll(conflictedHeadersTasks)
-
-                val responseWithHeaders = tasksToWork[0].taskRef.postParams.requestExecutor.executePost(
-                        createBatchString(tasksToWork),
-                        combinedHeaders,
+                val responseWithHeaders = promises[0].taskRef.postParams.requestExecutor.executePost(
+                        createBatchString(promises),
+                        combineHeaders(promises),
                         mapOf("applicationMethod" to combineRpcMethods(promises))
                 )
                 result = responseWithHeaders.first
-                tasksToWork.forEach { headersObserver.propagateHeaders(it.taskRef.getRequestIdentifier(), responseWithHeaders.second) }
+                promises.forEach { headersObserver.propagateHeaders(it.taskRef.getRequestIdentifier(), responseWithHeaders.second) }
             } catch (e: IOException) {
                 throw NetworkException(e)
             }
-            getRequestResponseList(tasksToWork, result).forEach {
-                try {
-                    val stringResult = SmartConverter.getStringResultOrThrow(converter, it.second, it.first.taskRef.postParams.conversionStrategy)
-                    val convertedResult = converter.deserialize(stringResult, it.first.taskRef.postParams.resultType)
+            val responses = getRequestResponseList(promises, result)
+            responses.forEach { deliver(it.first, it.second, executor) }
+            val answered = responses.mapTo(HashSet()) { it.first }
+            failUnanswered(promises.filter { it !in answered })
+        } catch (e: ClearNetworkException) {
+            promises.forEach { task ->
+                task.setError(e, invocationBlockType)
+            }
+        }
+    }
 
-                    validator.validate(convertedResult)
-                    it.first.setResult(convertedResult, stringResult, invocationBlockType)
-                } catch (e: ClearNetworkException) {
-                    it.first.setError(e, invocationBlockType)
+    /**
+     * Each result is delivered as soon as its element is read. If the response breaks or misses some ids,
+     * the error goes only to the requests which haven't got their results.
+     */
+    private fun executeStreamBatch(promises: List<Request>, requestExecutor: IStreamRequestExecutor, executor: Executor?) {
+        // todo remove manual casting
+        val promisesById = promises.associateByTo(HashMap()) { (it.taskRef.postParams.requestBody as RPCRequest).id }
+        try {
+            try {
+                val response = requestExecutor.executePostStream(
+                        createBatchString(promises),
+                        combineHeaders(promises),
+                        mapOf("applicationMethod" to combineRpcMethods(promises))
+                )
+                response.first.use {
+                    promises.forEach { headersObserver.propagateHeaders(it.taskRef.getRequestIdentifier(), response.second) }
+                    val scanner = JsonStreamScanner(it)
+                    scanner.readArray {
+                        val element = readResponse(scanner.readValue().toString())
+                        val id = element.id ?: throw JSONException("JSONObject[\"id\"] not found.")
+                        val request = getTaskPromiseById(promisesById, id)
+                        promisesById.remove(id)
+                        deliver(request, element, executor)
+                    }
                 }
+                failUnanswered(promisesById.values)
+            } catch (e: IOException) {
+                throw NetworkException(e)
+            } catch (e: JSONException) {
+                throw ConversionException("Incorrect batch response", e)
             }
         } catch (e: ClearNetworkException) {
-            promises.forEach { task ->
+            promisesById.values.forEach { task ->
                 task.setError(e, invocationBlockType)
             }
         }
     }
 
-    private fun combineHeaders(
-            promises: List<CoreTask.Promise>,
-            conflictedHeadersTasks: MutableList<CoreTask.Promise>
-    ): Map<String, String> = mutableMapOf<String, String>().apply {
-        promises.forEach { promise ->
-            promise.taskRef.postParams.headers.entries.forEach {
-                if (it.key in keys && this[it.key] != it.value) {
-                    conflictedHeadersTasks.add(promise)
-                } else {
-                    this[it.key] = it.value
+    private fun failUnanswered(requests: Collection<Request>) = requests.forEach {
+        val id = (it.taskRef.postParams.requestBody as RPCRequest).id
+        it.setError(ConversionException("Incorrect batch response", NoSuchElementException("No response for id $id")), invocationBlockType)
+    }
+
+    /**
+     * Converts the result on the [executor] if there is one
+     */
+    private fun deliver(request: Request, response: RpcResponse, executor: Executor?) {
+        if (executor == null) {
+            convertAndDeliver(request, response)
+        } else {
+            executor.execute {
+                try {
+                    convertAndDeliver(request, response)
+                } catch (e: Throwable) {
+                    request.setError(UnknownExternalException(e.message), invocationBlockType)
                 }
             }
         }
     }
 
+    /**
+     * Each task of the request gets its own instance of the result
+     */
+    private fun convertAndDeliver(request: Request, response: RpcResponse) {
+        request.promises.forEach { promise ->
+            try {
+                val postParams = promise.taskRef.postParams
+                val (convertedResult, plainResult) = convert(response, postParams.conversionStrategy, postParams.resultType)
+
+                validator.validate(convertedResult)
+                promise.setLazyResult(convertedResult, plainResult, invocationBlockType)
+            } catch (e: ClearNetworkException) {
+                promise.setError(e, invocationBlockType)
+            }
+        }
+    }
+
+    /**
+     * The headers of the batch tasks never conflict, see [splitToBatches]
+     */
+    private fun combineHeaders(promises: List<Request>): Map<String, String> = mutableMapOf<String, String>().apply {
+        promises.forEach { putAll(it.taskRef.postParams.headers) }
+    }
+
     @Deprecated("")
     // todo move this logic to Post params
     // It's difficult because it uses strange protocol with comma instead of HTTP params array
-    private fun combineRpcMethods(promises: List<CoreTask.Promise>) = promises.joinToString(",") { it.taskRef.getRequestIdentifier() }
+    private fun combineRpcMethods(promises: List<Request>) = promises.joinToString(",") { it.taskRef.getRequestIdentifier() }
 
+    /**
+     * The already serialized requests of the [RpcPostParams] are joined as they are, other bodies are serialized
+     */
     @Throws(ConversionException::class)
-    private fun createBatchString(promises: List<CoreTask.Promise>): String {
-        return converter.serialize(promises.map { it.taskRef.postParams.requestBody })
+    private fun createBatchString(promises: List<Request>): String {
+        val requests = promises.map {
+            if (it.taskRef.postParams is RpcPostParams) it.taskRef.requestKey else converter.serialize(it.taskRef.postParams.requestBody)
+        }
+        val builder = StringBuilder(requests.sumBy { it.length } + requests.size + 1)
+        return requests.joinTo(builder, ",", "[", "]").toString()
     }
 
     @Throws(ConversionException::class)
-    private fun getRequestResponseList(promises: List<CoreTask.Promise>, source: String): List<Pair<CoreTask.Promise, JSONObject>> {
+    private fun readResponse(source: String): RpcResponse {
         try {
-            val array = JSONArray(source)
-            return (0 until array.length())
-                    .map { array.getJSONObject(it) }
-                    .map { getTaskPromiseById(promises, it.getLong("id")) to it }
+            return RpcResponse.read(JsonScanner(source))
         } catch (e: JSONException) {
-            throw ConversionException("Incorrect batch response: $source", e)
+            throw ConversionException(e)
         }
-
     }
 
+    /**
+     * The batch is scanned once, the results aren't parsed until the deserialization
+     */
     @Throws(ConversionException::class)
-    private fun getTaskPromiseById(promises: List<CoreTask.Promise>, id: Long): CoreTask.Promise {
+    private fun getRequestResponseList(promises: List<Request>, source: String): List<Pair<Request, RpcResponse>> {
+        // todo remove manual casting
+        val promisesById = promises.associateBy { (it.taskRef.postParams.requestBody as RPCRequest).id }
+        val responses = ArrayList<Pair<Request, RpcResponse>>(promises.size)
         try {
-            return promises.first {
-                // todo remove manual casting
-                (it.taskRef.postParams.requestBody as RPCRequest).id == id
+            val scanner = JsonScanner(source)
+            scanner.readArray {
+                val response = RpcResponse.read(scanner)
+                val id = response.id ?: throw JSONException("JSONObject[\"id\"] not found.")
+                responses += getTaskPromiseById(promisesById, id) to response
+            }
+        } catch (e: JSONException) {
+            throw ConversionException("Incorrect batch response: $source", e)
+        }
+        return responses
+    }
+
+    @Throws(ConversionException::class)
+    private fun getTaskPromiseById(promisesById: Map<Long, Request>, id: Long): Request {
+        return promisesById[id] ?: throw ConversionException("Responses ids not comparable with requests ids", NoSuchElementException("No request with id $id"))
+    }
+
+    /**
+     * @return the deserialized result and the source of its String for the cache
+     */
+    @Throws(ClearNetworkException::class)
+    private fun convert(response: RpcResponse, strategy: ConversionStrategy, resultType: Type): Pair<Any?, () -> String?> {
+        if (strategy is JsonValueConversionStrategy && converter is IJsonValueSerializer) {
+            val value = SmartConverter.getResultValueOrThrow(converter, response.element.toString(), strategy)
+            return converter.deserializeValue(value, resultType) to { SmartConverter.valueToString(value) }
+        }
+        val stringResult = getStringResultOrThrow(response, strategy)
+        return converter.deserialize(stringResult, resultType) to { stringResult }
+    }
+
+    /**
+     * The result of the [DefaultConversionStrategy] is taken right from the scanned response,
+     * other strategies get the parsed response object
+     */
+    @Throws(ClearNetworkException::class)
+    private fun getStringResultOrThrow(response: RpcResponse, strategy: ConversionStrategy): String? {
+        return if (strategy.javaClass == DefaultConversionStrategy::class.java && !response.hasError) {
+            response.result?.optString() ?: ""
+        } else {
+            SmartConverter.getStringResultOrThrow(converter, response.element.toString(), strategy)
+        }
+    }
+
+    /**
+     * Request executors are compared by identity
+     */
+    private class BatchKey(val requestExecutor: IRequestExecutor, val maxBatchSize: Int) {
+        override fun equals(other: Any?) = other is BatchKey && other.requestExecutor === requestExecutor && other.maxBatchSize == maxBatchSize
+
+        override fun hashCode() = 31 * System.identityHashCode(requestExecutor) + maxBatchSize
+    }
+
+    /**
+     * Request executors are compared by identity, so are the conversion strategies except the stateless default one
+     */
+    private class RequestKey(
+            val requestExecutor: IRequestExecutor,
+            val cacheKey: String,
+            val resultType: Type,
+            conversionStrategy: ConversionStrategy,
+            val headers: Map<String, String>
+    ) {
+        private val conversionStrategy: Any = if (conversionStrategy.javaClass == DefaultConversionStrategy::class.java) {
+            DefaultConversionStrategy::class.java
+        } else {
+            conversionStrategy
+        }
+
+        override fun equals(other: Any?) = other is RequestKey && other.requestExecutor === requestExecutor
+                && other.cacheKey == cacheKey && other.resultType == resultType
+                && other.conversionStrategy === conversionStrategy && other.headers == headers
+
+        override fun hashCode() = 31 * System.identityHashCode(requestExecutor) + cacheKey.hashCode()
+    }
+
+    /**
+     * The task which is sent and the tasks with the same request which get its result or error
+     */
+    private class Request(private val promise: CoreTask.Promise) {
+        val duplicates = ArrayList<CoreTask.Promise>(0)
+        val taskRef: CoreTask
+            get() = promise.taskRef
+
+        /**
+         * The UTF-8 length of the request body
+         */
+        val bodyLength by lazy { utf8Length(taskRef.requestKey) }
+
+        val promises: List<CoreTask.Promise>
+            get() = if (duplicates.isEmpty()) listOf(promise) else listOf(promise) + duplicates
+
+        fun setLazyResult(result: Any?, plainResult: () -> String?, from: InvocationBlockType) {
+            promise.setLazyResult(result, plainResult, from)
+            duplicates.forEach { it.setLazyResult(result, plainResult, from) }
+        }
+
+        fun setError(exception: ClearNetworkException, from: InvocationBlockType) {
+            promise.setError(exception, from)
+            duplicates.forEach { it.setError(exception, from) }
+        }
+    }
+
+    private class LengthBatch {
+        val indexes = ArrayList<Int>()
+        var length = 1  // the closing bracket
+    }
+
+    /**
+     * Requests which can be sent in a single batch: no header has different values in them
+     */
+    private class HeadersGroup {
+        private val headers = HashMap<String, String>()
+        val promises = ArrayList<Request>()
+
+        fun accepts(taskHeaders: Map<String, String>) = taskHeaders.all { (key, value) ->
+            headers[key].let { it == null || it == value }
+        }
+
+        operator fun plusAssign(promise: Request) {
+            promises += promise
+            headers.putAll(promise.taskRef.postParams.headers)
+        }
+    }
+}
+
+private fun utf8Length(source: String): Int {
+    var length = 0
+    var i = 0
+    while (i < source.length) {
+        val char = source[i++]
+        length += when {
+            char < '\u0080' -> 1
+            char < '\u0800' -> 2
+            Character.isHighSurrogate(char) && i < source.length && Character.isLowSurrogate(source[i]) -> {
+                i++
+                4
             }
-        } catch (e: NoSuchElementException) {
-            throw ConversionException("Responses ids not comparable with requests ids", e)
+            else -> 3
         }
     }
-}
\ No newline at end of file
+    return length
+}
@@ -5,6 +5,7 @@ import clearnet.InvocationBlockType
 import clearnet.error.ConversionException
 import clearnet.interfaces.ICacheProvider
 import clearnet.interfaces.IInvocationBlock
+import clearnet.interfaces.IResultCacheProvider
 
 class SaveToCacheBlock(
         private val cacheProvider: ICacheProvider
@@ -13,12 +14,23 @@ class SaveToCacheBlock(
 
     override fun onEntity(promise: CoreTask.Promise) = with(promise) {
         try {
-            taskRef.getLastResult().plainResult?.let {
-                cacheProvider.store(
-                        taskRef.cacheKey,
-                        it,
-                        taskRef.postParams.expiresAfter
-                )
+            val lastResult = taskRef.getLastResult()
+            lastResult.plainResult?.let {
+                if (cacheProvider is IResultCacheProvider) {
+                    cacheProvider.storeResult(
+                            taskRef.cacheKey,
+                            taskRef.postParams.resultType,
+                            lastResult.result,
+                            it,
+                            taskRef.postParams.expiresAfter
+                    )
+                } else {
+                    cacheProvider.store(
+                            taskRef.cacheKey,
+                            it,
+                            taskRef.postParams.expiresAfter
+                    )
+                }
             }
         } catch (e: ConversionException) {
             // todo log error
@@ -15,8 +15,10 @@ import io.reactivex.schedulers.Schedulers
 import org.json.JSONException
 import org.json.JSONObject
 import java.io.IOException
+import java.io.InputStream
 import java.lang.reflect.Type
 import java.util.*
+import java.util.concurrent.Executor
 
 interface ConversionStrategy {
     @Throws(JSONException::class, ConversionStrategyError::class)
@@ -31,6 +33,9 @@ interface ConversionStrategy {
     object SmartConverter {
         @Throws(ClearNetworkException::class)
         fun convert(converter: ISerializer, body: String, type: Type, strategy: ConversionStrategy): Any? {
+            if (strategy is JsonValueConversionStrategy && converter is IJsonValueSerializer) {
+                return converter.deserializeValue(getResultValueOrThrow(converter, body, strategy), type)
+            }
             return converter.deserialize(getStringResultOrThrow(converter, body, strategy), type)
         }
 
@@ -53,6 +58,40 @@ interface ConversionStrategy {
                 throw clearnet.error.ResponseErrorException(converter.deserialize(e.serializedError, e.errorType))
             }
         }
+
+        @Throws(ClearNetworkException::class)
+        fun getResultValueOrThrow(converter: ISerializer, body: String, strategy: JsonValueConversionStrategy): Any? {
+            try {
+                return strategy.checkErrorOrResultValue(JSONObject(body))
+            } catch (e: JSONException) {
+                throw ConversionException(e)
+            } catch (e: ConversionStrategyError) {
+                throw clearnet.error.ResponseErrorException(converter.deserialize(e.serializedError, e.errorType))
+            }
+        }
+
+        /**
+         * The same text as [JSONObject.optString] returns for the value
+         */
+        @JvmStatic
+        fun valueToString(value: Any?) = if (value == null || value == JSONObject.NULL) "" else value.toString()
+    }
+}
+
+/**
+ * [ConversionStrategy] which returns the parsed result, so the [IJsonValueSerializer] reads it
+ * without printing and parsing it again
+ */
+interface JsonValueConversionStrategy : ConversionStrategy {
+    /**
+     * @return the org.json value of the result: [JSONObject], [org.json.JSONArray], String, Number, Boolean,
+     * [JSONObject.NULL] or null if there is no result
+     */
+    @Throws(JSONException::class, ConversionStrategy.ConversionStrategyError::class)
+    fun checkErrorOrResultValue(response: JSONObject): Any?
+
+    override fun checkErrorOrResult(response: JSONObject): String? {
+        return ConversionStrategy.SmartConverter.valueToString(checkErrorOrResultValue(response))
     }
 }
 
@@ -71,6 +110,58 @@ interface ICacheProvider {
     fun obtain(key: String): String?
 }
 
+/**
+ * [ICacheProvider] which can store several values at once, see [clearnet.WriteBehindCacheProvider]
+ */
+interface IBatchCacheProvider : ICacheProvider {
+    /**
+     * Stores the entries in a single transaction
+     */
+    fun storeAll(entries: List<Entry>)
+
+    class Entry(val key: String, val value: String, val expiresAfter: Long)
+}
+
+/**
+ * [ICacheProvider] which can read the stored values without building the Strings.
+ * It's used instead of [obtain] together with the [IStreamSerializer].
+ */
+interface IStreamCacheProvider : ICacheProvider {
+    /**
+     * @return the UTF-8 bytes of the stored value or null if there is no such value
+     */
+    fun obtainStream(key: String): InputStream?
+}
+
+/**
+ * [ICacheProvider] which also holds the deserialized results, see [clearnet.MemoryCacheProvider].
+ * The results are looked up by the cache key and the result type.
+ *
+ * The held result instance is delivered to every caller which hits it, as well as to the caller which got it
+ * from the network, so the callbacks must treat the results of the cached methods as read-only.
+ */
+interface IResultCacheProvider : ICacheProvider {
+    /**
+     * Stores the [result] together with its serialized form [value]
+     */
+    fun storeResult(key: String, type: Type, result: Any?, value: String, expiresAfter: Long)
+
+    /**
+     * Called when the [result] has been deserialized from the [value] obtained from this provider
+     */
+    fun onLoaded(key: String, type: Type, result: Any?, value: String)
+
+    /**
+     * @return null if there is no result of the [type]
+     */
+    fun obtainResult(key: String, type: Type): CachedResult?
+
+    /**
+     * The held [result], it can be delivered to several callers, so it mustn't be changed
+     */
+    class CachedResult(val result: Any?)
+}
+
 /**
  * The upper level abstraction of [IRequestExecutor].
  * It should serialize the object, send the request and deserialize the response to the model.
@@ -90,6 +181,26 @@ interface IRequestExecutor {
     fun executePost(body: String, headers: Map<String, String>, queryParams: Map<String, String> = emptyMap()): Pair<String, Map<String, String>>
 }
 
+/**
+ * Request executor which limits the length of the batch bodies. The requests are packed into as few batches
+ * as fit both the length and the maxBatchSize. A longer single request is sent alone.
+ */
+interface IBatchLimitedRequestExecutor : IRequestExecutor {
+    val maxBatchLength: Int
+}
+
+/**
+ * Request executor which can return the response body without reading it to a String.
+ * Single requests use [executePostStream] when the serializer is an [IStreamSerializer], batches still use [executePost].
+ */
+interface IStreamRequestExecutor : IRequestExecutor {
+    /**
+     * @return the UTF-8 response body, which is closed by the caller, and the response headers
+     */
+    @Throws(IOException::class, HTTPCodeError::class)
+    fun executePostStream(body: String, headers: Map<String, String>, queryParams: Map<String, String> = emptyMap()): Pair<InputStream, Map<String, String>>
+}
+
 /**
  * Serializes and deserializes models to/from String
  */
@@ -101,6 +212,28 @@ interface ISerializer {
     fun deserialize(body: String?, objectType: Type): Any?
 }
 
+/**
+ * Serializer which can read models from the values returned by the [JsonValueConversionStrategy]
+ */
+interface IJsonValueSerializer : ISerializer {
+    /**
+     * @param value the org.json value, see [JsonValueConversionStrategy.checkErrorOrResultValue]
+     */
+    @Throws(ConversionException::class)
+    fun deserializeValue(value: Any?, objectType: Type): Any?
+}
+
+/**
+ * Serializer which can read models right from the UTF-8 bytes
+ */
+interface IStreamSerializer : ISerializer {
+    /**
+     * The [body] holds a single JSON value and mustn't be closed
+     */
+    @Throws(ConversionException::class)
+    fun deserialize(body: InputStream, objectType: Type): Any?
+}
+
 interface ISmartConverter {
     @Throws(ClearNetworkException::class)
     fun convert(body: String, type: Type, strategy: ConversionStrategy): Any?
@@ -166,16 +299,46 @@ interface IInvocationBlock {
     val invocationBlockType: InvocationBlockType
     val queueAlgorithm: QueueAlgorithm
         get() = QueueAlgorithm.IMMEDIATE
+    /**
+     * The buffering time for [QueueAlgorithm.TIME_THRESHOLD] and [QueueAlgorithm.TIME_OR_SIZE_THRESHOLD],
+     * the widest window for [QueueAlgorithm.ADAPTIVE]
+     */
     val queueTimeThreshold: Long
         get() = 100L
+    /**
+     * The narrowest window for [QueueAlgorithm.ADAPTIVE]
+     */
+    val queueMinTimeThreshold: Long
+        get() = 0L
+    /**
+     * [QueueAlgorithm.ADAPTIVE] and [QueueAlgorithm.TIME_OR_SIZE_THRESHOLD] consume the queue as soon as it has
+     * so many tasks or as many as the smallest maxBatchSize of the queued tasks
+     */
+    val queueSizeThreshold: Int
+        get() = Int.MAX_VALUE
 
     fun onEntity(promise: CoreTask.Promise) {
         promise.next(invocationBlockType)
     }
     fun onQueueConsumed(promises: List<CoreTask.Promise>) {}
 
+    /**
+     * Called by the [clearnet.Core] on its [ioExecutor], which the block can use to process the queue in parallel
+     */
+    fun onQueueConsumed(promises: List<CoreTask.Promise>, ioExecutor: Executor) = onQueueConsumed(promises)
+
     enum class QueueAlgorithm {
-        IMMEDIATE, TIME_THRESHOLD
+        IMMEDIATE,
+        TIME_THRESHOLD,
+        /**
+         * The queue is consumed after [queueTimeThreshold] or as soon as it's full, see [queueSizeThreshold]
+         */
+        TIME_OR_SIZE_THRESHOLD,
+        /**
+         * The queue is consumed at once while the block is idle. While the block is busy the tasks are buffered
+         * for a window which grows under load and shrinks back when the batches become small.
+         */
+        ADAPTIVE
     }
 }
 
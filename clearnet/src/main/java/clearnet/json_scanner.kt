@@ -0,0 +1,355 @@
+package clearnet.conversion
+
+import org.json.JSONException
+import java.io.BufferedInputStream
+import java.io.InputStream
+
+/**
+ * Reads JSON without building the trees: values are skipped and returned as [JsonSlice]s of the source.
+ * Malformed input causes [JSONException] as in the org.json parser.
+ */
+internal class JsonScanner(private val source: String) {
+    private var position = 0
+
+    fun readArray(element: () -> Unit) {
+        consume('[')
+        if (peek() == ']') {
+            position++
+            return
+        }
+        while (true) {
+            element()
+            when (next()) {
+                ',' -> Unit
+                ']' -> return
+                else -> throw syntaxError("Expected ',' or ']'")
+            }
+        }
+    }
+
+    fun readObject(member: (name: String) -> Unit) {
+        consume('{')
+        if (peek() == '}') {
+            position++
+            return
+        }
+        while (true) {
+            if (peek() != '"') throw syntaxError("Expected a name")
+            val name = skipValue().stringValue()
+            consume(':')
+            member(name)
+            when (next()) {
+                ',' -> Unit
+                '}' -> return
+                else -> throw syntaxError("Expected ',' or '}'")
+            }
+        }
+    }
+
+    fun skipValue(): JsonSlice {
+        val start = position + countWhitespaces()
+        position = start
+        when (next()) {
+            '"' -> skipStringRest()
+            '{', '[' -> skipContainerRest()
+            ',', ':', '}', ']' -> throw syntaxError("Expected a value")
+            else -> while (position < source.length && source[position] !in LITERAL_END) position++
+        }
+        return JsonSlice(source, start, position)
+    }
+
+    /**
+     * Runs the [reader] of a single value and returns the slice of the read value
+     */
+    fun slice(reader: () -> Unit): JsonSlice {
+        val start = position + countWhitespaces()
+        reader()
+        return JsonSlice(source, start, position)
+    }
+
+    private fun skipStringRest() {
+        while (position < source.length) {
+            when (source[position++]) {
+                '\\' -> position++
+                '"' -> return
+            }
+        }
+        throw syntaxError("Unterminated string")
+    }
+
+    private fun skipContainerRest() {
+        var depth = 1
+        while (position < source.length) {
+            when (source[position++]) {
+                '"' -> skipStringRest()
+                '{', '[' -> depth++
+                '}', ']' -> if (--depth == 0) return
+            }
+        }
+        throw syntaxError("Unterminated container")
+    }
+
+    private fun consume(expected: Char) {
+        if (next() != expected) throw syntaxError("Expected '$expected'")
+    }
+
+    private fun peek(): Char {
+        position += countWhitespaces()
+        if (position >= source.length) throw syntaxError("Unexpected end")
+        return source[position]
+    }
+
+    private fun next(): Char {
+        val char = peek()
+        position++
+        return char
+    }
+
+    private fun countWhitespaces(): Int {
+        var i = position
+        while (i < source.length && source[i].isWhitespace()) i++
+        return i - position
+    }
+
+    private fun syntaxError(message: String) = JSONException("$message at $position")
+
+    private companion object {
+        const val LITERAL_END = ",:}] \t\r\n"
+    }
+}
+
+/**
+ * The raw text of a JSON value inside the source
+ */
+internal class JsonSlice(private val source: String, private val start: Int, private val end: Int) {
+    val isString: Boolean
+        get() = source[start] == '"'
+
+    val isNull: Boolean
+        get() = end - start == 4 && source.startsWith("null", start)
+
+    /**
+     * The unescaped content of a string value
+     */
+    fun stringValue(): String {
+        val builder = StringBuilder(end - start)
+        var i = start + 1
+        while (i < end - 1) {
+            val char = source[i++]
+            if (char != '\\') {
+                builder.append(char)
+                continue
+            }
+            val escaped = source[i++]
+            when (escaped) {
+                'b' -> builder.append('\b')
+                'f' -> builder.append('\u000C')
+                'n' -> builder.append('\n')
+                'r' -> builder.append('\r')
+                't' -> builder.append('\t')
+                'u' -> {
+                    try {
+                        builder.append(source.substring(i, i + 4).toInt(16).toChar())
+                    } catch (e: RuntimeException) {
+                        throw JSONException("Illegal escape at $i")
+                    }
+                    i += 4
+                }
+                else -> builder.append(escaped)
+            }
+        }
+        return builder.toString()
+    }
+
+    /**
+     * The same text as [org.json.JSONObject.optString] returns: the unescaped strings, "" for nulls
+     * and the raw JSON for other values
+     */
+    fun optString() = when {
+        isNull -> ""
+        isString -> stringValue()
+        else -> toString()
+    }
+
+    fun longValue(): Long {
+        val text = if (isString) stringValue() else toString()
+        try {
+            return text.toLongOrNull() ?: text.toDouble().toLong()
+        } catch (e: NumberFormatException) {
+            throw JSONException("Expected a number but was $text")
+        }
+    }
+
+    override fun toString() = source.substring(start, end)
+}
+
+/**
+ * An element of a JSON-RPC response with the top level fields which are used by the [DefaultConversionStrategy]
+ */
+internal class RpcResponse(val element: JsonSlice, val id: Long?, val result: JsonSlice?, val hasError: Boolean) {
+    companion object {
+        fun read(scanner: JsonScanner): RpcResponse {
+            var id: Long? = null
+            var result: JsonSlice? = null
+            var hasError = false
+            val element = scanner.slice {
+                scanner.readObject { name ->
+                    val value = scanner.skipValue()
+                    when (name) {
+                        "id" -> id = if (value.isNull) null else value.longValue()
+                        "result" -> result = value
+                        "error" -> hasError = true
+                    }
+                }
+            }
+            return RpcResponse(element, id, result, hasError)
+        }
+    }
+}
+
+/**
+ * Reads JSON from UTF-8 bytes. Values can be read as [JsonSlice]s or passed on as the streams of their bytes.
+ * Malformed input causes [JSONException] as in the org.json parser.
+ */
+internal class JsonStreamScanner(input: InputStream) {
+    private val input = input as? BufferedInputStream ?: BufferedInputStream(input)
+    private var peeked = NONE
+    private var position = 0L
+
+    fun readArray(element: () -> Unit) {
+        consume('[')
+        if (peek() == ']') {
+            read()
+            return
+        }
+        while (true) {
+            element()
+            when (next()) {
+                ',' -> Unit
+                ']' -> return
+                else -> throw syntaxError("Expected ',' or ']'")
+            }
+        }
+    }
+
+    fun readObject(member: (name: String) -> Unit) {
+        consume('{')
+        if (peek() == '}') {
+            read()
+            return
+        }
+        while (true) {
+            if (peek() != '"') throw syntaxError("Expected a name")
+            val name = readValue().stringValue()
+            consume(':')
+            member(name)
+            when (next()) {
+                ',' -> Unit
+                '}' -> return
+                else -> throw syntaxError("Expected ',' or '}'")
+            }
+        }
+    }
+
+    fun readValue(): JsonSlice {
+        val text = String(valueStream().use { it.readBytes() }, Charsets.UTF_8)
+        return JsonSlice(text, 0, text.length)
+    }
+
+    fun skipValue() {
+        valueStream().close()
+    }
+
+    /**
+     * The stream of the next value. Closing it skips the rest of the value.
+     */
+    fun valueStream(): InputStream = when (peek()) {
+        ',', ':', '}', ']' -> throw syntaxError("Expected a value")
+        else -> ValueStream()
+    }
+
+    fun peek(): Char {
+        var byte = read()
+        while (byte != NONE && byte.toChar().isWhitespace()) byte = read()
+        if (byte == NONE) throw syntaxError("Unexpected end")
+        peeked = byte
+        position--
+        return byte.toChar()
+    }
+
+    private fun next(): Char {
+        val char = peek()
+        read()
+        return char
+    }
+
+    private fun consume(expected: Char) {
+        if (next() != expected) throw syntaxError("Expected '$expected'")
+    }
+
+    private fun read(): Int {
+        val byte = if (peeked != NONE) peeked.also { peeked = NONE } else input.read()
+        if (byte != NONE) position++
+        return byte
+    }
+
+    private fun syntaxError(message: String) = JSONException("$message at $position")
+
+    private inner class ValueStream : InputStream() {
+        private var started = false
+        private var finished = false
+        private var literal = false
+        private var inString = false
+        private var escaped = false
+        private var depth = 0
+
+        override fun read(): Int {
+            if (finished) return NONE
+            val byte = this@JsonStreamScanner.read()
+            if (byte == NONE) {
+                if (!literal) throw syntaxError("Unexpected end")
+                finished = true
+                return NONE
+            }
+            val char = byte.toChar()
+
+            when {
+                !started -> {
+                    started = true
+                    when (char) {
+                        '"' -> inString = true
+                        '{', '[' -> depth = 1
+                        else -> literal = true
+                    }
+                }
+                literal -> if (char in LITERAL_END) {
+                    peeked = byte
+                    position--
+                    finished = true
+                    return NONE
+                }
+                inString -> when {
+                    escaped -> escaped = false
+                    char == '\\' -> escaped = true
+                    char == '"' -> {
+                        inString = false
+                        finished = depth == 0
+                    }
+                }
+                char == '"' -> inString = true
+                char == '{' || char == '[' -> depth++
+                char == '}' || char == ']' -> finished = --depth == 0
+            }
+            return byte
+        }
+
+        override fun close() {
+            while (read() != NONE);
+        }
+    }
+
+    private companion object {
+        const val NONE = -1
+        const val LITERAL_END = ",:}] \t\r\n"
+    }
+}
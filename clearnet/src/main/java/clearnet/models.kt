@@ -62,21 +62,74 @@ class RpcPostParams(
     override val cacheKey: String
 
     init {
-        flatRequest = serializer.serialize(requestBody)
+        // the cache must not store the actual request id as a key
+        cacheKey = serializer.serialize(requestBody.copy(0))
+        flatRequest = replaceId(cacheKey, requestBody.id) ?: serializer.serialize(requestBody)
+    }
+
+    private companion object {
+        /**
+         * Writes the [id] into the value of the top level "id" field of the serialized request.
+         * Returns null if the serializer has written the field in an unexpected way.
+         */
+        fun replaceId(json: String, id: Long): String? {
+            var depth = 0
+            var i = 0
+            while (i < json.length) {
+                when (json[i]) {
+                    '{', '[' -> depth++
+                    '}', ']' -> depth--
+                    '"' -> {
+                        val start = i
+                        i = skipString(json, i)
+                        if (depth == 1 && i - start == 3 && json.regionMatches(start, "\"id\"", 0, 4)) {
+                            val colon = skipWhitespaces(json, i + 1)
+                            if (colon < json.length && json[colon] == ':') {
+                                val valueStart = skipWhitespaces(json, colon + 1)
+                                var valueEnd = valueStart
+                                while (valueEnd < json.length && json[valueEnd] in "0123456789-+.eE") valueEnd++
+                                if (valueEnd == valueStart) return null
+
+                                return StringBuilder(json.length + 20)
+                                        .append(json, 0, valueStart)
+                                        .append(id)
+                                        .append(json, valueEnd, json.length)
+                                        .toString()
+                            }
+                        }
+                    }
+                }
+                i++
+            }
+            return null
+        }
 
-        val id = requestBody.id
-        requestBody.id = 0  // we have to make this hook for making cache not store actual request id as key
-        val ccacheKey = serializer.serialize(requestBody)
-        requestBody.id = id
-        cacheKey = ccacheKey
+        /**
+         * @return the index of the closing quote
+         */
+        private fun skipString(json: String, openingQuote: Int): Int {
+            var i = openingQuote + 1
+            while (i < json.length && json[i] != '"') {
+                if (json[i] == '\\') i++
+                i++
+            }
+            return i
+        }
+
+        private fun skipWhitespaces(json: String, from: Int): Int {
+            var i = from
+            while (i < json.length && json[i].isWhitespace()) i++
+            return i
+        }
     }
 }
 
 
-class MergedInvocationStrategy(strategies: Array<InvocationStrategy>) {
-    private val algorithm: Map<InvocationBlockType, IInvocationStrategy.Decision>
-    private val metaData: MutableMap<String, String>
-
+class MergedInvocationStrategy private constructor(
+        private val algorithm: Map<InvocationBlockType, IInvocationStrategy.Decision>,
+        private val metaData: MutableMap<String, String>
+) {
+    constructor(strategies: Array<InvocationStrategy>) : this(mergeAlgorithms(strategies), mergeMetaData(strategies))
 
     operator fun get(index: InvocationBlockType): IInvocationStrategy.Decision = algorithm[index]
             ?: IInvocationStrategy.Decision(emptyArray(), emptyArray())
@@ -90,15 +143,24 @@ class MergedInvocationStrategy(strategies: Array<InvocationStrategy>) {
         else metaData[key] = value
     }
 
-    init {
-        val mergedAlgorithm = mutableMapOf<InvocationBlockType, IInvocationStrategy.Decision>()
-        val mergedMeta = mutableMapOf<String, String>()
-        strategies.forEach {
-            mergedAlgorithm.putAll(it.algorithm)
-            mergedMeta.putAll(it.metaData)
+    /**
+     * The algorithm is immutable and shared, only the meta data is copied
+     */
+    @Synchronized
+    fun copy() = MergedInvocationStrategy(algorithm, HashMap(metaData))
+
+    private companion object {
+        fun mergeAlgorithms(strategies: Array<InvocationStrategy>): Map<InvocationBlockType, IInvocationStrategy.Decision> {
+            val mergedAlgorithm = mutableMapOf<InvocationBlockType, IInvocationStrategy.Decision>()
+            strategies.forEach { mergedAlgorithm.putAll(it.algorithm) }
+            return mergedAlgorithm
+        }
+
+        fun mergeMetaData(strategies: Array<InvocationStrategy>): MutableMap<String, String> {
+            val mergedMeta = mutableMapOf<String, String>()
+            strategies.forEach { mergedMeta.putAll(it.metaData) }
+            return mergedMeta
         }
-        algorithm = mergedAlgorithm
-        metaData = mergedMeta
     }
 }
 
@@ -0,0 +1,229 @@
+package clearnet
+
+import clearnet.blocks.GetFromNetBlock
+import clearnet.conversion.DefaultConversionStrategy
+import clearnet.help.*
+import clearnet.interfaces.IBodyValidator
+import clearnet.interfaces.IInvocationBlock.QueueAlgorithm
+import clearnet.interfaces.IInvocationBlock.QueueAlgorithm.ADAPTIVE
+import clearnet.interfaces.IInvocationBlock.QueueAlgorithm.TIME_OR_SIZE_THRESHOLD
+import clearnet.interfaces.ISerializer
+import clearnet.model.MergedInvocationStrategy
+import clearnet.model.RpcPostParams
+import io.reactivex.schedulers.TestScheduler
+import org.json.JSONArray
+import org.junit.Before
+import org.junit.Test
+import java.util.ArrayDeque
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class BatchBufferTest {
+    private lateinit var testScheduler: TestScheduler
+    private lateinit var batches: MutableList<List<CoreTask>>
+    private lateinit var completions: MutableList<() -> Unit>
+
+    @Before
+    fun setup() {
+        testScheduler = TestScheduler()
+        batches = mutableListOf()
+        completions = mutableListOf()
+    }
+
+    @Test
+    fun idleQueueIsConsumedAtOnce() {
+        val buffer = createBuffer()
+
+        buffer.add(createTask())
+        assertEquals(1, batches.size)
+
+        completions[0]()
+        buffer.add(createTask())
+        assertEquals(2, batches.size)
+    }
+
+    @Test
+    fun tasksWaitForRunningBatch() {
+        val buffer = createBuffer(minWindow = 50)
+
+        buffer.add(createTask())
+        buffer.add(createTask())
+        buffer.add(createTask())
+        assertEquals(1, batches.size)
+
+        completions[0]()
+        assertEquals(2, batches.size)
+        assertEquals(2, batches[1].size)
+    }
+
+    @Test
+    fun windowGrowsUnderLoad() {
+        val buffer = createBuffer(minWindow = 10, maxWindow = 40)
+
+        buffer.add(createTask())
+        buffer.add(createTask())
+        buffer.add(createTask())
+        testScheduler.advanceTimeBy(10, TimeUnit.MILLISECONDS)
+        assertEquals(2, batches.size)
+
+        buffer.add(createTask())
+        testScheduler.advanceTimeBy(10, TimeUnit.MILLISECONDS)
+        assertEquals(2, batches.size)
+        testScheduler.advanceTimeBy(10, TimeUnit.MILLISECONDS)
+        assertEquals(3, batches.size)
+
+        buffer.add(createTask())
+        testScheduler.advanceTimeBy(10, TimeUnit.MILLISECONDS)
+        assertEquals(4, batches.size)
+    }
+
+    @Test
+    fun fullQueueIsConsumedEarly() {
+        val buffer = createBuffer(minWindow = 100, sizeThreshold = 3)
+
+        buffer.add(createTask())
+        buffer.add(createTask(maxBatchSize = 2))
+        buffer.add(createTask())
+        assertEquals(2, batches.size)
+        assertEquals(2, batches[1].size)
+
+        buffer.add(createTask())
+        buffer.add(createTask())
+        buffer.add(createTask())
+        assertEquals(3, batches.size)
+        assertEquals(3, batches[2].size)
+    }
+
+    @Test
+    fun notAdaptiveQueueWaitsForWindow() {
+        val buffer = createBuffer(minWindow = 10, maxWindow = 100, adaptive = false)
+
+        buffer.add(createTask())
+        testScheduler.advanceTimeBy(99, TimeUnit.MILLISECONDS)
+        assertEquals(0, batches.size)
+        testScheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS)
+        assertEquals(1, batches.size)
+
+        completions[0]()
+        buffer.add(createTask())
+        buffer.add(createTask())
+        testScheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS)
+        assertEquals(2, batches.size)
+        assertEquals(2, batches[1].size)
+    }
+
+    @Test
+    fun burstIsSentByFullBatches() {
+        val batchSizes = mutableListOf<Int>()
+        val core = createCore(TIME_OR_SIZE_THRESHOLD)
+        val testRequests = ExecutorWrapper(core, HeadersProviderStub, GsonTestSerializer())
+                .create(TestRequests::class.java, object : BatchTestRequestExecutor() {
+                    override fun executePost(body: String, headers: Map<String, String>, queryParams: Map<String, String>): Pair<String, Map<String, String>> {
+                        batchSizes += if (body.startsWith("[")) JSONArray(body).length() else 1
+                        return super.executePost(body, headers, queryParams)
+                    }
+                }, 10)
+
+        repeat(50) {
+            testRequests.firstOfBatch(RequestCallbackStub())
+        }
+        testScheduler.triggerActions()
+
+        assertEquals(listOf(10, 10, 10, 10, 10), batchSizes)
+    }
+
+    @Test
+    fun singleRequestDoesNotWaitForThreshold() {
+        val core = createCore(ADAPTIVE)
+        val testRequests = ExecutorWrapper(core, HeadersProviderStub, GsonTestSerializer())
+                .create(TestRequests::class.java, BatchTestRequestExecutor(), 5)
+
+        val result = AtomicReference<String>()
+        testRequests.firstOfBatch(object : RequestCallbackStub<String>() {
+            override fun onSuccess(response: String) {
+                result.set(response)
+            }
+        })
+        testScheduler.triggerActions()
+
+        assertEquals("test0", result.get())
+        assertTrue(core.tasks.snapshot().isEmpty())
+    }
+
+    @Test
+    fun batchIsRunningUntilResultsAreDelivered() {
+        val io = ArrayDeque<Runnable>()
+        val conversions = ArrayDeque<Runnable>()
+        val core = Core(
+                ioExecutor = Executor { io += it },
+                worker = testScheduler,
+                blocks = *object : TestCoreBlocks() {
+                    override fun createGetFromNetBlock(validator: IBodyValidator, converter: ISerializer) =
+                            GetFromNetBlock(validator, converter, ADAPTIVE, queueMinTimeThreshold = 50, dispatcher = Executor { conversions += it })
+                }.getAll()
+        )
+        var posts = 0
+        val testRequests = ExecutorWrapper(core, HeadersProviderStub, GsonTestSerializer())
+                .create(TestRequests::class.java, object : BatchTestRequestExecutor() {
+                    override fun executePost(body: String, headers: Map<String, String>, queryParams: Map<String, String>): Pair<String, Map<String, String>> {
+                        posts++
+                        return super.executePost(body, headers, queryParams)
+                    }
+                }, 5)
+        val drain = {
+            do {
+                testScheduler.triggerActions()
+                while (io.isNotEmpty()) io.poll().run()
+                testScheduler.triggerActions()
+            } while (io.isNotEmpty())
+        }
+
+        // the first one is sent at once, the others wait for it and come in a batch of two
+        repeat(3) { testRequests.firstOfBatch(RequestCallbackStub()) }
+        drain()
+        assertEquals(2, posts)
+        assertEquals(2, conversions.size)
+
+        // the batch isn't finished until its results are converted
+        val last = TestRequestCallback<String>()
+        testRequests.firstOfBatch(last)
+        drain()
+        assertEquals(2, posts)
+
+        while (conversions.isNotEmpty()) conversions.poll().run()
+        drain()
+        assertEquals(3, posts)
+        assertEquals(1, last.successes.size)
+    }
+
+    private fun createCore(queueAlgorithm: QueueAlgorithm) = Core(
+            ioExecutor = TrampolineExecutor(),
+            worker = testScheduler,
+            blocks = *object : TestCoreBlocks() {
+                override fun createGetFromNetBlock(validator: IBodyValidator, converter: ISerializer) = GetFromNetBlock(validator, converter, queueAlgorithm)
+            }.getAll()
+    )
+
+    private fun createBuffer(minWindow: Long = 0, maxWindow: Long = 100, sizeThreshold: Int = Int.MAX_VALUE, adaptive: Boolean = true) =
+            BatchBuffer(minWindow, maxWindow, sizeThreshold, adaptive, testScheduler) { tasks, onConsumed ->
+                batches.add(tasks)
+                completions.add(onConsumed)
+            }
+
+    private fun createTask(maxBatchSize: Int = 10) = CoreTask(RpcPostParams(
+            emptyMap(),
+            RPCRequest("test.adaptive"),
+            String::class.java,
+            RequestExecutorStub(),
+            MergedInvocationStrategy(arrayOf(InvocationStrategy.NO_CACHE)),
+            0,
+            DefaultConversionStrategy(),
+            emptyMap(),
+            true,
+            maxBatchSize,
+            GsonTestSerializer()
+    ))
+}
@@ -1,17 +1,28 @@
 package clearnet
 
+import clearnet.blocks.GetFromNetBlock
 import clearnet.error.ClearNetworkException
+import clearnet.error.ConversionException
+import clearnet.error.UnknownExternalException
 import clearnet.help.*
 import clearnet.interfaces.*
 import com.google.gson.Gson
 import io.reactivex.schedulers.TestScheduler
 import org.json.JSONArray
+import org.json.JSONObject
 import org.junit.Before
 import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicReference
 import kotlin.test.assertEquals
+import kotlin.test.assertNotSame
+import kotlin.test.assertTrue
 
 class BatchRequestTest : CoreBlocksTest() {
 
@@ -111,6 +122,227 @@ class BatchRequestTest : CoreBlocksTest() {
     }
 
 
+    @Test
+    fun differentExecutorsInOneWindow() {
+        val dispatched = AtomicInteger()
+        core = Core(
+                ioExecutor = TrampolineExecutor(),
+                worker = testScheduler,
+                blocks = *object : TestCoreBlocks(cacheProvider = testCacheProvider) {
+                    override fun createGetFromNetBlock(validator: IBodyValidator, converter: ISerializer) =
+                            GetFromNetBlock(validator, converter, dispatcher = Executor {
+                                dispatched.incrementAndGet()
+                                it.run()
+                            })
+                }.getAll()
+        )
+        val firstRequestExecutor = TestSingleRequestsExecutor("test1")
+        val secondRequestExecutor = TestSingleRequestsExecutor("test2")
+
+        val firstResult = AtomicReference<String>()
+        val secondResult = AtomicReference<String>()
+
+        provideTestRequests(firstRequestExecutor).firstOfBatch(object : RequestCallbackStub<String>() {
+            override fun onSuccess(response: String) = firstResult.set(response)
+        })
+        provideTestRequests(secondRequestExecutor).secondOfBatch(object : RequestCallbackStub<String>() {
+            override fun onSuccess(response: String) = secondResult.set(response)
+        })
+
+        forwardScheduler()
+
+        assertEquals("test1", firstResult.get())
+        assertEquals("test2", secondResult.get())
+        assertEquals(1, dispatched.get())
+    }
+
+    @Test
+    fun failedBatchFailsOnlyItsTasks() {
+        val dispatched = ArrayList<Runnable>()
+        core = Core(
+                ioExecutor = TrampolineExecutor(),
+                worker = testScheduler,
+                blocks = *object : TestCoreBlocks(cacheProvider = testCacheProvider) {
+                    override fun createGetFromNetBlock(validator: IBodyValidator, converter: ISerializer) =
+                            GetFromNetBlock(validator, converter, dispatcher = Executor { dispatched += it })
+                }.getAll()
+        )
+        val failing = object : RequestExecutorStub() {
+            override fun executePost(body: String, headers: Map<String, String>, queryParams: Map<String, String>): Pair<String, Map<String, String>> {
+                throw IllegalStateException("test")
+            }
+        }
+        val first = TestRequestCallback<String>()
+        val second = TestRequestCallback<String>()
+
+        provideTestRequests(failing).firstOfBatch(first)
+        provideTestRequests(TestSingleRequestsExecutor("test2")).secondOfBatch(second)
+        forwardScheduler()
+        dispatched.forEach { it.run() }
+        forwardScheduler()
+
+        assertTrue(first.errors.single() is UnknownExternalException)
+        assertEquals(listOf("test2"), second.successes)
+        assertTrue(second.errors.isEmpty())
+    }
+
+    @Test
+    fun batchesRunOnIoExecutorByDefault() {
+        val pool = Executors.newCachedThreadPool()
+        // the tasks of the worker run in place, so both requests come in one window, the nested ones go to the pool
+        val running = ThreadLocal<Boolean>()
+        val ioExecutor = Executor { command ->
+            if (running.get() == true) {
+                pool.execute(command)
+            } else {
+                running.set(true)
+                try {
+                    command.run()
+                } finally {
+                    running.set(false)
+                }
+            }
+        }
+        core = Core(ioExecutor, testScheduler, blocks = *invocationBlocks.getAll())
+        // each request waits for the other one, so they pass only if they are executed in parallel
+        val barrier = CyclicBarrier(2)
+        val requestExecutors = listOf("test1", "test2").map { result ->
+            object : RequestExecutorStub() {
+                override fun executePost(body: String, headers: Map<String, String>, queryParams: Map<String, String>): Pair<String, Map<String, String>> {
+                    barrier.await(1, TimeUnit.SECONDS)
+                    return Pair(Gson().toJson(mapOf("result" to result)), emptyMap())
+                }
+            }
+        }
+        val callback = TestRequestCallback<String>()
+
+        try {
+            provideTestRequests(requestExecutors[0]).firstOfBatch(callback)
+            provideTestRequests(requestExecutors[1]).secondOfBatch(callback)
+            forwardScheduler()
+            pool.shutdown()
+            assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS))
+            forwardScheduler()
+
+            assertEquals(setOf("test1", "test2"), callback.successes.toSet())
+            assertTrue(callback.errors.isEmpty())
+        } finally {
+            pool.shutdownNow()
+        }
+    }
+
+    @Test
+    fun identicalRequestsInOneWindow() {
+        listOf(false to listOf(4), true to listOf(2)).forEach { (coalesceNotBindable, batchSizes) ->
+            // the executor returns the position of the request in the batch
+            core = Core(
+                    ioExecutor = TrampolineExecutor(),
+                    worker = testScheduler,
+                    blocks = *object : TestCoreBlocks(cacheProvider = testCacheProvider) {
+                        override fun createGetFromNetBlock(validator: IBodyValidator, converter: ISerializer) =
+                                GetFromNetBlock(validator, converter, coalesceNotBindable = coalesceNotBindable)
+                    }.getAll()
+            )
+            val executor = TestCheckBatchSizeRequestExecutor()
+            val testRequests = provideTestRequests(executor)
+            val callback = TestRequestCallback<String>()
+
+            testRequests.firstOfBatch(callback)
+            testRequests.secondOfBatch(callback)
+            testRequests.firstOfBatch(callback)
+            testRequests.firstOfBatch(callback)
+
+            forwardScheduler()
+
+            assertEquals(batchSizes, executor.counter)
+            assertEquals(4, callback.successes.size)
+            assertEquals(5 - batchSizes[0], callback.successes.count { it == "test0" })
+        }
+    }
+
+    @Test
+    fun identicalRequestsWithDifferentStrategies() {
+        core = Core(
+                ioExecutor = TrampolineExecutor(),
+                worker = testScheduler,
+                blocks = *object : TestCoreBlocks(cacheProvider = testCacheProvider) {
+                    override fun createGetFromNetBlock(validator: IBodyValidator, converter: ISerializer) =
+                            GetFromNetBlock(validator, converter, coalesceNotBindable = true)
+                }.getAll()
+        )
+        val bodies = mutableListOf<String>()
+        val testRequests = provideTestRequests(object : BatchTestRequestExecutor() {
+            override fun executePost(body: String, headers: Map<String, String>, queryParams: Map<String, String>): Pair<String, Map<String, String>> {
+                bodies += body
+                val requests = JSONArray(body)
+                val responses = (0 until requests.length()).joinToString(",", "[", "]") {
+                    "{\"result\": {\"success\": true, \"data\": {\"test\": 1}, \"test\": 2}, \"id\": ${requests.getJSONObject(it).getLong("id")}}"
+                }
+                return responses to emptyMap()
+            }
+        })
+        val callback = TestRequestCallback<TestObject>()
+        val innerCallback = TestRequestCallback<TestObject>()
+
+        testRequests.coalesced(callback)
+        testRequests.coalescedInner(innerCallback)
+        testRequests.coalesced(callback)
+        forwardScheduler()
+
+        assertEquals(2, JSONArray(bodies.single()).length())
+        assertEquals(listOf(TestObject(2), TestObject(2)), callback.successes)
+        assertEquals(listOf(TestObject(1)), innerCallback.successes)
+        assertNotSame(callback.successes[0], callback.successes[1])
+    }
+
+    @Test
+    fun batchesFitLengthLimit() {
+        val bodies = mutableListOf<String>()
+        val executor = object : BatchTestRequestExecutor(), IBatchLimitedRequestExecutor {
+            override val maxBatchLength = 1100
+
+            override fun executePost(body: String, headers: Map<String, String>, queryParams: Map<String, String>): Pair<String, Map<String, String>> {
+                bodies += body
+                return super.executePost(body, headers, queryParams)
+            }
+        }
+        val testRequests = provideTestRequests(executor)
+        listOf(300, 600, 600, 300, 2000).forEachIndexed { i, length ->
+            testRequests.testParams("x".repeat(length), i, intArrayOf())
+        }
+
+        forwardScheduler()
+
+        assertEquals(3, bodies.size)
+        assertEquals(4, JSONObject(bodies.single { it.length > executor.maxBatchLength }).getJSONObject("params").getInt("p2"))
+        bodies.filter { it.length <= executor.maxBatchLength }.forEach {
+            val batch = JSONArray(it)
+            assertEquals(2, batch.length())
+            // the order of the requests is kept
+            assertTrue(batch.getJSONObject(0).getJSONObject("params").getInt("p2") < batch.getJSONObject(1).getJSONObject("params").getInt("p2"))
+        }
+    }
+
+    @Test
+    fun batchLengthIsCountedInBytes() {
+        val bodies = mutableListOf<String>()
+        val executor = object : BatchTestRequestExecutor(), IBatchLimitedRequestExecutor {
+            override val maxBatchLength = 1500
+
+            override fun executePost(body: String, headers: Map<String, String>, queryParams: Map<String, String>): Pair<String, Map<String, String>> {
+                bodies += body
+                return super.executePost(body, headers, queryParams)
+            }
+        }
+        val testRequests = provideTestRequests(executor)
+        repeat(2) { testRequests.testParams("я".repeat(400), it, intArrayOf()) }
+
+        forwardScheduler()
+
+        assertEquals(2, bodies.size)
+        bodies.forEach { assertTrue(it.toByteArray(Charsets.UTF_8).size <= executor.maxBatchLength) }
+    }
+
     @Test
     fun headers() {
         val counter = AtomicInteger()
@@ -158,6 +390,28 @@ class BatchRequestTest : CoreBlocksTest() {
         assertEquals(2, executor.counter.size)
     }
 
+    @Test
+    fun conflictedHeadersInOneWindow() {
+        val executor = TestCheckBatchSizeRequestExecutor()
+        val testRequests = provideTestRequests(
+                requestExecutor = executor,
+                headerProvider = object : HeaderProvider {
+                    var callsCount = 0
+                    override fun obtainHeadersList(): Map<String, String> {
+                        callsCount++
+                        return mapOf("Header" to "header-${callsCount % 2}")
+                    }
+                }
+        )
+        testRequests.firstOfBatch(RequestCallbackStub())
+        testRequests.secondOfBatch(RequestCallbackStub())
+        testRequests.firstOfBatch(RequestCallbackStub())
+
+        forwardScheduler()
+
+        assertEquals(listOf(2, 1), executor.counter)
+    }
+
     @Test
     fun someOfBatchIsFromCache() {
         val firstResult = AtomicReference<String>()
@@ -225,6 +479,84 @@ class BatchRequestTest : CoreBlocksTest() {
         assertEquals(1, executor.counter[1])
     }
 
+    @Test
+    fun batchBodyIsJoinedFromSerializedRequests() {
+        val bodies = mutableListOf<String>()
+        val testRequests = provideTestRequests(object : BatchTestRequestExecutor() {
+            override fun executePost(body: String, headers: Map<String, String>, queryParams: Map<String, String>): Pair<String, Map<String, String>> {
+                bodies += body
+                return super.executePost(body, headers, queryParams)
+            }
+        })
+        testRequests.firstOfBatch(RequestCallbackStub())
+        testRequests.testParams("p1", 2, intArrayOf(3))
+
+        forwardScheduler()
+
+        val requests = JSONArray(bodies.single())
+        assertEquals(2, requests.length())
+        assertEquals("test.firstOfBatch", requests.getJSONObject(0).getString("method"))
+        assertEquals("test.testParams", requests.getJSONObject(1).getString("method"))
+        assertEquals("[3]", requests.getJSONObject(1).getJSONObject("params").getJSONArray("p3").toString())
+    }
+
+    @Test
+    fun streamedBatchResultsAreDeliveredOneByOne() {
+        val dispatched = AtomicInteger()
+        invocationBlocks = object : TestCoreBlocks(cacheProvider = testCacheProvider) {
+            override fun createGetFromNetBlock(validator: IBodyValidator, converter: ISerializer) =
+                    GetFromNetBlock(validator, converter, dispatcher = Executor {
+                        dispatched.incrementAndGet()
+                        it.run()
+                    })
+        }
+        core = Core(TrampolineExecutor(), testScheduler, blocks = *invocationBlocks.getAll())
+        val testRequests = provideTestRequests(object : BatchTestRequestExecutor(), IStreamRequestExecutor {
+            override fun executePostStream(body: String, headers: Map<String, String>, queryParams: Map<String, String>): Pair<InputStream, Map<String, String>> {
+                val response = executePost(body, headers, queryParams).first
+                // the response breaks after the first element
+                return ByteArrayInputStream(response.substring(0, response.indexOf("},{") + 2).toByteArray()) to emptyMap()
+            }
+        })
+        val first = TestRequestCallback<String>()
+        val second = TestRequestCallback<String>()
+
+        testRequests.firstOfBatch(first)
+        testRequests.secondOfBatch(second)
+        forwardScheduler()
+
+        assertEquals(listOf("test0"), first.successes)
+        assertTrue(second.successes.isEmpty())
+        assertTrue(second.errors.single() is ConversionException)
+        assertEquals(1, dispatched.get()) // only the conversion of the first result
+    }
+
+    @Test
+    fun missingResponsesFailTheirRequests() {
+        val onlyFirst = { response: String -> JSONArray().put(JSONArray(response).getJSONObject(0)).toString() }
+        val executors = listOf(object : BatchTestRequestExecutor() {
+            override fun executePost(body: String, headers: Map<String, String>, queryParams: Map<String, String>): Pair<String, Map<String, String>> {
+                return onlyFirst(super.executePost(body, headers, queryParams).first) to emptyMap()
+            }
+        }, object : BatchTestRequestExecutor(), IStreamRequestExecutor {
+            override fun executePostStream(body: String, headers: Map<String, String>, queryParams: Map<String, String>): Pair<InputStream, Map<String, String>> {
+                return ByteArrayInputStream(onlyFirst(executePost(body, headers, queryParams).first).toByteArray()) to emptyMap()
+            }
+        })
+        executors.forEach { executor ->
+            val testRequests = provideTestRequests(executor)
+            val first = TestRequestCallback<String>()
+            val second = TestRequestCallback<String>()
+
+            testRequests.firstOfBatch(first)
+            testRequests.secondOfBatch(second)
+            forwardScheduler()
+
+            assertEquals(listOf("test0"), first.successes)
+            assertTrue(second.errors.single() is ConversionException)
+        }
+    }
+
     private fun provideTestRequests(requestExecutor: IRequestExecutor, headerProvider: HeaderProvider = HeadersProviderStub): TestRequests {
         return ExecutorWrapper(core, headerProvider, GsonTestSerializer())
                 .create(TestRequests::class.java, requestExecutor, MAX_BATCH_SIZE)
@@ -0,0 +1,83 @@
+package clearnet
+
+import clearnet.conversion.DefaultConversionStrategy
+import clearnet.error.NetworkException
+import clearnet.help.GsonTestSerializer
+import clearnet.help.RequestExecutorStub
+import clearnet.model.MergedInvocationStrategy
+import clearnet.model.RpcPostParams
+import org.junit.Test
+import java.io.IOException
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+
+class CoreTaskTest {
+
+    @Test
+    fun plainResultIsKeptOnlyForCache() {
+        var calls = 0
+        val plainResult = {
+            calls++
+            "test"
+        }
+
+        val results = listOf(InvocationStrategy.NO_CACHE, InvocationStrategy.PRIORITY_REQUEST).map {
+            var result: CoreTask.Result? = null
+            createTask(it).promise().apply {
+                observe().subscribe { result = it }
+                setLazyResult("test", plainResult, InvocationBlockType.GET_FROM_NET)
+            }
+            result as CoreTask.SuccessResult
+        }
+        assertEquals(0, calls)
+
+        assertNull(results[0].plainResult)
+        assertEquals("test", results[1].plainResult)
+        assertEquals("test", results[1].plainResult)
+        assertEquals(1, calls)
+    }
+
+    @Test
+    fun lateSubscriberGetsLatestDeliveries() {
+        val task = createTask(InvocationStrategy.PRIORITY_CACHE)
+        val successes = (0 until 3).map { CoreTask.SuccessResult("test$it", null, emptyArray()) }
+        val error = CoreTask.ErrorResult(NetworkException(IOException()), emptyArray())
+        successes.forEach { task.deliver(it) }
+        task.deliver(error)
+
+        val received = ArrayList<CoreTask.Result>()
+        task.observe().subscribe { received += it }
+        task.deliver(successes[0])
+
+        assertEquals(listOf(successes[2], error, successes[0]), received)
+    }
+
+    @Test
+    fun lastResultsAreKeptByType() {
+        val task = createTask(InvocationStrategy.PRIORITY_CACHE)
+        val error = NetworkException(IOException())
+
+        task.promise().setResult("cached", "cached", InvocationBlockType.GET_FROM_CACHE)
+        task.promise().setError(error, InvocationBlockType.GET_FROM_NET)
+        assertEquals("cached", task.getLastResult().result)
+
+        task.promise().setResult("actual", "actual", InvocationBlockType.GET_FROM_NET)
+        assertEquals("actual", task.getLastResult().result)
+        assertSame(error, task.getLastErrorResult().error)
+    }
+
+    private fun createTask(strategy: InvocationStrategy) = CoreTask(RpcPostParams(
+            emptyMap(),
+            RPCRequest("test.plainResult"),
+            String::class.java,
+            RequestExecutorStub(),
+            MergedInvocationStrategy(arrayOf(strategy)),
+            0,
+            DefaultConversionStrategy(),
+            emptyMap(),
+            true,
+            1,
+            GsonTestSerializer()
+    ))
+}
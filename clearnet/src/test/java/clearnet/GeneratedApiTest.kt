@@ -0,0 +1,53 @@
+package clearnet
+
+import clearnet.help.*
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNotNull
+import kotlin.test.assertTrue
+
+class GeneratedApiTest {
+    private val testConverterExecutor = TestConverterExecutor()
+    private val executorWrapper = ExecutorWrapper(testConverterExecutor, HeadersProviderStub, GsonTestSerializer())
+
+    @Test
+    fun generatedImplementationIsUsed() {
+        val testRequests = executorWrapper.create(TestGeneratedRequests::class.java, RequestExecutorStub(), 5)
+        assertEquals(ExecutorWrapper.generatedClassName(TestGeneratedRequests::class.java), testRequests.javaClass.name)
+
+        testRequests.generatedRequest(RequestCallbackStub())
+
+        val postParams = testConverterExecutor.lastParams
+        assertNotNull(postParams)
+        assertEquals("generated.generatedRequest", (postParams!!.requestBody as RPCRequest).method)
+        assertEquals(String::class.java, postParams.resultType)
+        assertEquals(5, postParams.maxBatchSize)
+    }
+
+    @Test
+    fun proxyIsUsedWithoutGeneratedImplementation() {
+        val testRequests = executorWrapper.create(TestGenericRequests::class.java, RequestExecutorStub(), 5)
+        assertTrue(java.lang.reflect.Proxy.isProxyClass(testRequests.javaClass))
+    }
+
+    @Test
+    fun nullCallbackIsRejectedAsByProxy() {
+        val generated = executorWrapper.create(TestGeneratedRequests::class.java, RequestExecutorStub(), 5)
+        val proxy = executorWrapper.create(TestGenericRequests::class.java, RequestExecutorStub(), 5) as TestGenericRequests<String>
+
+        assertFailsWith<IllegalArgumentException> { generated.generatedRequest(null) }
+        assertFailsWith<IllegalArgumentException> { proxy.genericRequest("test", null) }
+    }
+
+    @Test
+    fun brokenConversionStrategyFailsTheCall() {
+        val testRequests = executorWrapper.create(TestGeneratedRequests::class.java, RequestExecutorStub(), 5)
+
+        repeat(2) {
+            assertFailsWith<InstantiationException> { testRequests.brokenStrategyRequest(RequestCallbackStub()) }
+        }
+        testRequests.generatedRequest(RequestCallbackStub())
+        assertNotNull(testConverterExecutor.lastParams)
+    }
+}
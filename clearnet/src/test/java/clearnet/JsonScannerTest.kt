@@ -0,0 +1,92 @@
+package clearnet
+
+import clearnet.conversion.JsonScanner
+import clearnet.conversion.JsonStreamScanner
+import clearnet.conversion.RpcResponse
+import org.json.JSONArray
+import org.json.JSONException
+import org.json.JSONObject
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class JsonScannerTest {
+
+    @Test
+    fun resultsAreTheSameAsOptString() {
+        val batch = """ [
+            {"jsonrpc": "2.0", "id": 1, "result": "line\nbreak \"quoted\" A \\ \/"},
+            {"result": 12.5, "id": "2"},
+            {"id": 3, "result": {"a": [1, "]}", {"b": null}], "c": "{["}},
+            {"id": 4, "result": null},
+            {"id": 5},
+            {"id": 6, "result": true, "error": {"code": 1}}
+        ] """
+        val expected = JSONArray(batch)
+
+        val responses = mutableListOf<RpcResponse>()
+        val scanner = JsonScanner(batch)
+        scanner.readArray { responses += RpcResponse.read(scanner) }
+
+        assertEquals(expected.length(), responses.size)
+        responses.forEachIndexed { i, response ->
+            val expectedObject = expected.getJSONObject(i)
+            assertEquals(expectedObject.getLong("id"), response.id)
+            assertEquals(expectedObject.has("error"), response.hasError)
+            val result = response.result?.optString() ?: ""
+            if (expectedObject.opt("result") is JSONObject) {
+                assertEquals(expectedObject.getJSONObject("result").toString(), JSONObject(result).toString())
+            } else {
+                assertEquals(expectedObject.optString("result"), result)
+            }
+            assertEquals(expectedObject.toString(), JSONObject(response.element.toString()).toString())
+        }
+    }
+
+    @Test
+    fun streamValuesAreTheSameAsSlices() {
+        val response = """ {"id": 1, "result" : {"a": [1, "]}\"x", {"b": null}], "c": "{[ т"} , "s": "\"\u0442\"", "n": -1.5e3} """
+        val expected = LinkedHashMap<String, String>()
+        val stringScanner = JsonScanner(response)
+        stringScanner.readObject { expected[it] = stringScanner.skipValue().toString() }
+
+        val actual = LinkedHashMap<String, String>()
+        val streamScanner = JsonStreamScanner(response.byteInputStream())
+        streamScanner.readObject { name ->
+            actual[name] = if (name == "result") {
+                streamScanner.valueStream().use { String(it.readBytes(1), Charsets.UTF_8) }
+            } else {
+                streamScanner.readValue().toString()
+            }
+        }
+
+        assertEquals(expected, actual)
+        assertEquals("\"т\"", JsonStreamScanner("\"\\\"\\u0442\\\"\"".byteInputStream()).readValue().stringValue())
+    }
+
+    @Test
+    fun emptyResponses() {
+        val scanner = JsonScanner(" [ ] ")
+        scanner.readArray { throw AssertionError("No elements expected") }
+
+        val response = RpcResponse.read(JsonScanner("{}"))
+        assertNull(response.id)
+        assertNull(response.result)
+        assertFalse(response.hasError)
+    }
+
+    @Test
+    fun malformedResponses() {
+        listOf("", "[", "[{]", "{\"id\" 1}", "{\"id\": 1,}", "{\"result\": \"unterminated}", "[{\"id\": 1} {\"id\": 2}]").forEach {
+            assertFailsWith<JSONException>(it) {
+                val scanner = JsonScanner(it)
+                if (it.startsWith("[")) scanner.readArray { RpcResponse.read(scanner) }
+                else RpcResponse.read(scanner)
+            }
+        }
+        assertTrue(RpcResponse.read(JsonScanner("{\"id\": null}")).id == null)
+    }
+}
@@ -0,0 +1,113 @@
+package clearnet
+
+import clearnet.conversion.JsonValueSerializer
+import clearnet.error.ResponseErrorException
+import clearnet.help.*
+import clearnet.interfaces.IJsonValueSerializer
+import clearnet.interfaces.ISerializer
+import clearnet.model.RpcErrorResponse
+import org.json.JSONArray
+import org.json.JSONObject
+import org.junit.Before
+import org.junit.Test
+import java.lang.reflect.Type
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class JsonValueConversionTest : CoreBlocksTest() {
+    private lateinit var serializer: RecordingSerializer
+    private lateinit var requestExecutor: ResponseRequestExecutor
+    private lateinit var testRequests: TestRequests
+
+    @Before
+    fun setup() {
+        serializer = RecordingSerializer()
+        requestExecutor = ResponseRequestExecutor()
+        coreBlocks = TestCoreBlocks(converter = serializer)
+        val core = Core(ImmediateExecutor, testScheduler, blocks = *coreBlocks.getAll())
+        testRequests = ExecutorWrapper(core, HeadersProviderStub, serializer)
+                .create(TestRequests::class.java, requestExecutor, Int.MAX_VALUE)
+    }
+
+    @Test
+    fun resultIsDeserializedFromValue() {
+        requestExecutor.response = "{\"result\": {\"data\": {\"test\": 1}}}"
+        val callback = TestRequestCallback<TestObject>()
+
+        testRequests.innerValueResponse(callback)
+        forwardScheduler()
+
+        assertEquals(listOf(TestObject(1)), callback.successes)
+        assertEquals(listOf<Any>(JSONObject::class.java), serializer.values.map { it!!.javaClass })
+    }
+
+    @Test
+    fun valueOfResultTypeIsDeliveredAsIs() {
+        requestExecutor.response = "{\"result\": {\"data\": {\"test\": 1}}}"
+        val callback = TestRequestCallback<JSONObject>()
+
+        testRequests.innerJsonValueResponse(callback)
+        forwardScheduler()
+
+        assertSame(serializer.values.single(), callback.successes.single())
+        assertEquals(1, callback.successes.single().getInt("test"))
+    }
+
+    @Test
+    fun otherValuesAreDeserializedByWrappedSerializer() {
+        val serializer = JsonValueSerializer(GsonTestSerializer())
+        assertEquals(null, serializer.deserializeValue(JSONObject.NULL, TestObject::class.java))
+        assertEquals(null, serializer.deserializeValue(null, JSONObject::class.java))
+        assertEquals("text", serializer.deserializeValue("text", String::class.java))
+        assertEquals(TestObject(2), serializer.deserializeValue(JSONObject("{\"test\": 2}"), TestObject::class.java))
+    }
+
+    @Test
+    fun objectResultsAreDeserializedByWrappedSerializer() {
+        val serializer = JsonValueSerializer(GsonTestSerializer())
+        val value = JSONObject("{\"test\": 2}")
+
+        assertEquals(GsonTestSerializer().deserialize(value.toString(), Any::class.java), serializer.deserializeValue(value, Any::class.java))
+        assertFalse(serializer.deserializeValue(value, Any::class.java) is JSONObject)
+        assertFalse(serializer.deserializeValue(JSONArray("[1]"), Any::class.java) is JSONArray)
+        assertEquals(1L, serializer.deserializeValue(1L, Long::class.javaObjectType))
+    }
+
+    @Test
+    fun errorIsDeserializedFromString() {
+        requestExecutor.response = "{\"error\": {\"code\": 1, \"message\": \"test\"}}"
+        val callback = TestRequestCallback<TestObject>()
+
+        testRequests.innerValueResponse(callback)
+        forwardScheduler()
+
+        assertEquals(1, ((callback.errors.single() as ResponseErrorException).error as RpcErrorResponse).code)
+        assertTrue(serializer.values.isEmpty())
+    }
+
+    @Test
+    fun valueIsPrintedForStringSerializers() {
+        val strategy = InnerValueConversionStrategy()
+        assertEquals("{\"test\":1}", strategy.checkErrorOrResult(JSONObject("{\"result\": {\"data\": {\"test\": 1}}}")))
+        assertEquals("", strategy.checkErrorOrResult(JSONObject("{\"result\": {\"data\": null}}")))
+        assertEquals("text", strategy.checkErrorOrResult(JSONObject("{\"result\": {\"data\": \"text\"}}")))
+    }
+
+    class RecordingSerializer : IJsonValueSerializer, ISerializer by GsonTestSerializer() {
+        private val serializer = JsonValueSerializer(GsonTestSerializer())
+        val values = ArrayList<Any?>()
+
+        override fun deserializeValue(value: Any?, objectType: Type): Any? {
+            values += value
+            return serializer.deserializeValue(value, objectType)
+        }
+    }
+
+    class ResponseRequestExecutor : RequestExecutorStub() {
+        lateinit var response: String
+
+        override fun executePost(body: String, headers: Map<String, String>, queryParams: Map<String, String>) = response to emptyMap<String, String>()
+    }
+}
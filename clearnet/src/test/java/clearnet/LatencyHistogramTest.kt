@@ -0,0 +1,26 @@
+package clearnet
+
+import org.junit.Test
+import kotlin.test.assertEquals
+
+class LatencyHistogramTest {
+
+    @Test
+    fun percentiles() {
+        val histogram = LatencyHistogram()
+        assertEquals(0, histogram.percentile(50.0))
+
+        repeat(90) { histogram.record(3) }
+        repeat(9) { histogram.record(100) }
+        histogram.record(0)
+
+        assertEquals(100, histogram.count)
+        assertEquals(0, histogram.percentile(0.0))
+        assertEquals(3, histogram.percentile(50.0))
+        assertEquals(3, histogram.percentile(90.0))
+        assertEquals(127, histogram.percentile(99.0))
+
+        histogram.reset()
+        assertEquals(0, histogram.count)
+    }
+}
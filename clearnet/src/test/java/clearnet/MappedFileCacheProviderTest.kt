@@ -0,0 +1,153 @@
+package clearnet
+
+import io.reactivex.schedulers.TestScheduler
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class MappedFileCacheProviderTest {
+    private lateinit var directory: File
+    private lateinit var scheduler: TestScheduler
+
+    @Before
+    fun setup() {
+        directory = createTempDir("clearnet-cache")
+        scheduler = TestScheduler()
+    }
+
+    @After
+    fun clean() {
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun storeAndObtain() {
+        val cache = createCache()
+        cache.store("1", "val1", Long.MAX_VALUE)
+        cache.store("2", "значение", Long.MAX_VALUE)
+        cache.store("1", "val2", Long.MAX_VALUE)
+        cache.store("3", "val3", 10)
+
+        assertEquals("val2", cache.obtain("1"))
+        assertEquals("значение", cache.obtainStream("2")!!.reader().readText())
+        assertEquals("val3", cache.obtain("3"))
+        assertNull(cache.obtain("4"))
+
+        scheduler.advanceTimeBy(10, TimeUnit.MILLISECONDS)
+        assertNull(cache.obtain("3"))
+        assertNull(cache.obtainStream("3"))
+    }
+
+    @Test
+    fun valuesAreRestored() {
+        createCache(segmentSize = 64).apply {
+            store("1", "val1", Long.MAX_VALUE)
+            store("2", "x".repeat(100), Long.MAX_VALUE)
+            store("1", "val2", Long.MAX_VALUE)
+            store("3", "val3", 10)
+            close()
+        }
+        scheduler.advanceTimeBy(10, TimeUnit.MILLISECONDS)
+
+        val cache = createCache(segmentSize = 64)
+        assertEquals("val2", cache.obtain("1"))
+        assertEquals("x".repeat(100), cache.obtain("2"))
+        assertNull(cache.obtain("3"))
+
+        cache.store("4", "val4", Long.MAX_VALUE)
+        assertEquals("val4", createCache(segmentSize = 64).obtain("4"))
+    }
+
+    @Test
+    fun compactionDeletesDeadSegments() {
+        val cache = createCache(segmentSize = 64)
+        repeat(20) {
+            cache.store("key", "value$it", Long.MAX_VALUE)
+            cache.store("expiring$it", "value", 10)
+        }
+        cache.store("other", "value", Long.MAX_VALUE)
+        val segments = cache.segmentsCount
+        scheduler.advanceTimeBy(10, TimeUnit.MILLISECONDS)
+
+        cache.compact()
+
+        assertTrue(cache.segmentsCount < segments)
+        assertEquals(cache.segmentsCount, directory.listFiles().size)
+        assertEquals("value19", cache.obtain("key"))
+        assertEquals("value", cache.obtain("other"))
+
+        val restored = createCache(segmentSize = 64)
+        assertEquals("value19", restored.obtain("key"))
+        assertEquals("value", restored.obtain("other"))
+        assertNull(restored.obtain("expiring19"))
+    }
+
+    @Test
+    fun expiredValuesDontComeBackAfterCompaction() {
+        val value = "x".repeat(20)
+        // segment 0 stays alive, segment 1 is compacted, segment 2 is active
+        createCache(segmentSize = 100).apply {
+            store("key", "old$value", Long.MAX_VALUE)
+            store("other", "y".repeat(30), Long.MAX_VALUE)
+            store("key", "new$value", 10)
+            store("expiring", value, 10)
+            store("last", value, Long.MAX_VALUE)
+            scheduler.advanceTimeBy(10, TimeUnit.MILLISECONDS)
+
+            compact()
+            assertEquals(2, segmentsCount)
+            assertNull(obtain("key"))
+            close()
+        }
+
+        val restored = createCache(segmentSize = 100)
+        assertNull(restored.obtain("key"))
+        assertEquals("y".repeat(30), restored.obtain("other"))
+        assertEquals(value, restored.obtain("last"))
+    }
+
+    @Test
+    fun openStreamsSurviveCompaction() {
+        val cache = createCache(segmentSize = 64)
+        cache.store("key", "value", Long.MAX_VALUE)
+        cache.store("expiring", "x".repeat(40), 10)
+        cache.store("last", "value", Long.MAX_VALUE)
+        val stream = cache.obtainStream("key")!!
+        scheduler.advanceTimeBy(10, TimeUnit.MILLISECONDS)
+
+        cache.compact()
+
+        assertEquals("value", stream.reader().readText())
+        stream.close()
+        assertEquals("value", cache.obtain("key"))
+    }
+
+    @Test
+    fun closedCacheIsNotUsed() {
+        val cache = createCache()
+        cache.store("1", "val1", Long.MAX_VALUE)
+        val stream = cache.obtainStream("1")!!
+
+        cache.close()
+        cache.store("2", "val2", Long.MAX_VALUE)
+
+        assertNull(cache.obtain("1"))
+        assertNull(cache.obtainStream("1"))
+        assertNull(cache.obtain("2"))
+        assertEquals(0, cache.segmentsCount)
+        assertEquals("val1", stream.reader().readText())
+        stream.close()
+
+        val restored = createCache()
+        assertEquals("val1", restored.obtain("1"))
+        assertNull(restored.obtain("2"))
+        restored.close()
+    }
+
+    private fun createCache(segmentSize: Int = 1024) = MappedFileCacheProvider(directory, segmentSize, 0, scheduler)
+}
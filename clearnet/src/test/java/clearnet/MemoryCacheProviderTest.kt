@@ -0,0 +1,151 @@
+package clearnet
+
+import clearnet.help.*
+import clearnet.interfaces.ICacheProvider
+import io.reactivex.schedulers.TestScheduler
+import org.junit.Before
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class MemoryCacheProviderTest {
+    private lateinit var scheduler: TestScheduler
+    private lateinit var provider: MapCacheProvider
+
+    @Before
+    fun setup() {
+        scheduler = TestScheduler()
+        provider = MapCacheProvider()
+    }
+
+    @Test
+    fun resultsAreWrittenThrough() {
+        val cache = MemoryCacheProvider(provider, scheduler = scheduler)
+        val result = TestObject(1)
+
+        cache.storeResult("key", TestObject::class.java, result, "{\"test\":1}", 100)
+
+        assertSame(result, cache.obtainResult("key", TestObject::class.java)!!.result)
+        assertNull(cache.obtainResult("key", String::class.java))
+        assertEquals(mapOf("key" to "{\"test\":1}"), provider.values)
+
+        cache.store("key", "{\"test\":2}", 100)
+        assertNull(cache.obtainResult("key", TestObject::class.java))
+        assertEquals("{\"test\":2}", cache.obtain("key"))
+    }
+
+    @Test
+    fun resultsExpire() {
+        val cache = MemoryCacheProvider(provider, loadedExpiresAfter = 10, scheduler = scheduler)
+        cache.storeResult("stored", String::class.java, "a", "a", 100)
+        cache.onLoaded("loaded", String::class.java, "b", "b")
+
+        scheduler.advanceTimeBy(10, TimeUnit.MILLISECONDS)
+        assertEquals("a", cache.obtainResult("stored", String::class.java)!!.result)
+        assertNull(cache.obtainResult("loaded", String::class.java))
+
+        scheduler.advanceTimeBy(90, TimeUnit.MILLISECONDS)
+        assertNull(cache.obtainResult("stored", String::class.java))
+        assertEquals(0, cache.size)
+
+        MemoryCacheProvider(provider, scheduler = scheduler).apply {
+            onLoaded("loaded", String::class.java, "b", "b")
+            assertEquals(0, size)
+        }
+    }
+
+    @Test
+    fun leastRecentlyUsedResultsAreEvicted() {
+        val cache = MemoryCacheProvider(provider, maxWeight = 10, scheduler = scheduler)
+        cache.storeResult("a", String::class.java, "a", "aaaa", 100)
+        cache.storeResult("b", String::class.java, "b", "bbbb", 100)
+        cache.obtainResult("a", String::class.java)
+        cache.storeResult("c", String::class.java, "c", "cccc", 100)
+
+        assertEquals("a", cache.obtainResult("a", String::class.java)?.result)
+        assertNull(cache.obtainResult("b", String::class.java))
+        assertEquals("c", cache.obtainResult("c", String::class.java)?.result)
+
+        cache.storeResult("d", String::class.java, "d", "d".repeat(11), 100)
+        assertEquals(2, cache.size)
+        assertEquals(4, provider.values.size)
+    }
+
+    @Test
+    fun hitsSkipProvider() {
+        val cache = MemoryCacheProvider(provider)
+        val core = Core(ImmediateExecutor, scheduler, blocks = *TestCoreBlocks(cacheProvider = cache).getAll())
+        val testRequests = ExecutorWrapper(core, HeadersProviderStub, GsonTestSerializer())
+                .create(TestRequests::class.java, RequestExecutorStub(), 1)
+        val callback = TestRequestCallback<String>()
+
+        testRequests.priorityCache(callback)
+        scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS)
+        testRequests.priorityCache(callback)
+        scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS)
+
+        assertEquals(listOf("test", "test"), callback.successes)
+        assertEquals(1, provider.obtains)
+        assertEquals(1, cache.size)
+    }
+
+    @Test
+    fun loadedResultsAreKeptOnDemand() {
+        createTestRequests(MemoryCacheProvider(provider)).priorityCache(TestRequestCallback())
+        scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS)
+
+        val cache = MemoryCacheProvider(provider, loadedExpiresAfter = 1000, scheduler = scheduler)
+        val testRequests = createTestRequests(cache)
+        val callback = TestRequestCallback<String>()
+        testRequests.priorityCache(callback)
+        scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS)
+        testRequests.priorityCache(callback)
+        scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS)
+
+        assertEquals(listOf("test", "test"), callback.successes)
+        assertEquals(2, provider.obtains)
+        assertEquals(1, cache.size)
+    }
+
+    @Test
+    fun hitsShareHeldResult() {
+        val cache = MemoryCacheProvider(provider)
+        val testRequests = createTestRequests(cache, object : RequestExecutorStub() {
+            override fun executePost(body: String, headers: Map<String, String>, queryParams: Map<String, String>) =
+                    Pair("{\"id\":1, \"result\":{\"test\":1}}", emptyMap<String, String>())
+        })
+        val callback = TestRequestCallback<TestObject>()
+
+        for (i in 0 until 3) {
+            testRequests.priorityCacheObject(callback)
+            scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS)
+        }
+
+        assertEquals(3, callback.successes.size)
+        assertEquals(1, callback.successes[0].test)
+        assertTrue(callback.successes.all { it === callback.successes[0] })
+        assertEquals(1, provider.obtains)
+    }
+
+    private fun createTestRequests(cache: ICacheProvider, executor: RequestExecutorStub = RequestExecutorStub()): TestRequests {
+        val core = Core(ImmediateExecutor, scheduler, blocks = *TestCoreBlocks(cacheProvider = cache).getAll())
+        return ExecutorWrapper(core, HeadersProviderStub, GsonTestSerializer()).create(TestRequests::class.java, executor, 1)
+    }
+
+    class MapCacheProvider : ICacheProvider {
+        val values = HashMap<String, String>()
+        var obtains = 0
+
+        override fun store(key: String, value: String, expiresAfter: Long) {
+            values[key] = value
+        }
+
+        override fun obtain(key: String): String? {
+            obtains++
+            return values[key]
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.junit.Before
 import org.junit.Test
 import java.util.*
 import kotlin.test.assertEquals
+import kotlin.test.assertNotEquals
 import kotlin.test.assertNotNull
 import kotlin.test.fail
 
@@ -85,6 +86,28 @@ class RPCRequestBuildingTest {
         assertEquals(p3, (testConverterExecutor.lastParams!!.requestBody as RPCRequest).params)
     }
 
+    @Test
+    fun flatRequestAndCacheKey() {
+        val serializer = GsonTestSerializer()
+        val tricky = "{\"id\": 7, \"\\\"id\\\"\": [\"id\"]}"
+
+        testRequests.testParams(tricky, 1, intArrayOf(1, 2))
+        val first = testConverterExecutor.lastParams!!
+        val firstBody = first.requestBody as RPCRequest
+        testRequests.testParams(tricky, 1, intArrayOf(1, 2))
+        val second = testConverterExecutor.lastParams!!
+        val secondBody = second.requestBody as RPCRequest
+
+        assertEquals(serializer.serialize(firstBody), first.flatRequest)
+        assertEquals(serializer.serialize(secondBody), second.flatRequest)
+        assertNotEquals(first.flatRequest, second.flatRequest)
+        assertEquals(first.cacheKey, second.cacheKey)
+        assertNotEquals(0, firstBody.id)
+
+        firstBody.id = 0
+        assertEquals(serializer.serialize(firstBody), first.cacheKey)
+    }
+
     @Test
     fun rpcScopeOnFile() {
         val testRequest: TestRequestsForSingleScope = ExecutorWrapper(testConverterExecutor, HeadersProviderStub, GsonTestSerializer())
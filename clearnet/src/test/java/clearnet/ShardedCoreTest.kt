@@ -0,0 +1,50 @@
+package clearnet
+
+import clearnet.help.*
+import io.reactivex.schedulers.TestScheduler
+import org.junit.Before
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class ShardedCoreTest : CoreBlocksTest() {
+    private lateinit var secondScheduler: TestScheduler
+    private lateinit var core: Core
+    private lateinit var testRequests: TestRequests
+
+    @Before
+    fun setup() {
+        secondScheduler = TestScheduler()
+        core = Core(TrampolineExecutor(), blocks = *coreBlocks.getAll(), workers = listOf(testScheduler, secondScheduler))
+        testRequests = ExecutorWrapper(core, HeadersProviderStub, GsonTestSerializer())
+                .create(TestRequests::class.java, BatchTestRequestExecutor(), 5)
+    }
+
+    @Test
+    fun tasksAreSpreadByCacheKey() {
+        val callback = TestRequestCallback<String>()
+
+        for (i in 0 until 20) testRequests.bindableTask(i, callback)
+        testRequests.bindableTask(7, callback)
+        forwardSchedulers()
+
+        assertEquals(21, callback.successes.size)
+        assertEquals(20L, core.shardCounters.map { it.startedTasks }.sum())
+        assertTrue(core.shardCounters.all { it.startedTasks > 0 }, core.shardCounters.toString())
+        assertEquals(1L, core.shardCounters.map { it.boundRequests }.sum())
+        assertTrue(core.shardCounters.all { it.activeTasks == 0 })
+        assertEquals(0, core.tasks.size)
+    }
+
+    @Test
+    fun singleWorkerMakesSingleShard() {
+        assertEquals(1, Core(TrampolineExecutor(), testScheduler).shardCounters.size)
+        assertEquals(2, core.shardCounters.size)
+    }
+
+    private fun forwardSchedulers() {
+        forwardScheduler()
+        secondScheduler.advanceTimeBy(timeT, TimeUnit.MILLISECONDS)
+    }
+}
@@ -0,0 +1,120 @@
+package clearnet
+
+import clearnet.error.ResponseErrorException
+import clearnet.help.*
+import clearnet.interfaces.*
+import clearnet.model.RpcErrorResponse
+import com.google.gson.Gson
+import org.junit.Before
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+import java.lang.reflect.Type
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class StreamingTest : CoreBlocksTest() {
+    private lateinit var cacheProvider: StreamCacheProvider
+    private lateinit var requestExecutor: StreamRequestExecutor
+    private lateinit var testRequests: TestRequests
+
+    @Before
+    fun setup() {
+        val serializer = GsonStreamTestSerializer()
+        cacheProvider = StreamCacheProvider()
+        requestExecutor = StreamRequestExecutor()
+        coreBlocks = TestCoreBlocks(converter = serializer, cacheProvider = cacheProvider)
+        val core = Core(ImmediateExecutor, testScheduler, blocks = *coreBlocks.getAll())
+        testRequests = ExecutorWrapper(core, HeadersProviderStub, serializer)
+                .create(TestRequests::class.java, requestExecutor, 1)
+    }
+
+    @Test
+    fun resultIsReadFromStream() {
+        requestExecutor.response = "{\"jsonrpc\": \"2.0\", \"result\": {\"test\": 1, \"s\": \"}\"}, \"id\": 1}"
+        val callback = TestRequestCallback<TestObject>()
+
+        testRequests.commonResponse(callback)
+        forwardScheduler()
+
+        assertEquals(listOf(TestObject(1)), callback.successes)
+        assertEquals(listOf(true), requestExecutor.streamed)
+    }
+
+    @Test
+    fun errorIsReadFromStream() {
+        requestExecutor.response = "{\"result\": null, \"error\": {\"code\": 1, \"message\": \"test\"}}"
+        val callback = TestRequestCallback<TestObject>()
+
+        testRequests.commonResponse(callback)
+        forwardScheduler()
+
+        assertTrue(callback.successes.isEmpty())
+        val error = (callback.errors.single() as ResponseErrorException).error as RpcErrorResponse
+        assertEquals(1, error.code)
+        assertEquals("test", error.message)
+    }
+
+    @Test
+    fun cachedResultsAreReadAsStrings() {
+        requestExecutor.response = "{\"result\": \"test\"}"
+        val callback = TestRequestCallback<String>()
+
+        testRequests.priorityCache(callback)
+        forwardScheduler()
+
+        assertEquals(listOf("test"), callback.successes)
+        assertEquals(listOf(false), requestExecutor.streamed)
+        assertEquals("test", cacheProvider.stored)
+
+        testRequests.priorityCache(callback)
+        forwardScheduler()
+
+        assertEquals(listOf("test", "test"), callback.successes)
+        assertEquals(1, requestExecutor.streamed.size)
+        assertEquals(1, cacheProvider.streamed)
+    }
+
+    class GsonStreamTestSerializer : IStreamSerializer, ISerializer by GsonTestSerializer() {
+        private val gson = Gson()
+
+        override fun deserialize(body: InputStream, objectType: Type): Any? {
+            return if (objectType == String::class.java) {
+                deserialize(body.reader().readText(), objectType)
+            } else {
+                gson.fromJson(body.reader(), objectType)
+            }
+        }
+    }
+
+    class StreamRequestExecutor : RequestExecutorStub(), IStreamRequestExecutor {
+        lateinit var response: String
+        val streamed = ArrayList<Boolean>()
+
+        override fun executePost(body: String, headers: Map<String, String>, queryParams: Map<String, String>): Pair<String, Map<String, String>> {
+            streamed += false
+            return response to emptyMap()
+        }
+
+        override fun executePostStream(body: String, headers: Map<String, String>, queryParams: Map<String, String>): Pair<InputStream, Map<String, String>> {
+            streamed += true
+            return ByteArrayInputStream(response.toByteArray()) to emptyMap()
+        }
+    }
+
+    class StreamCacheProvider : IStreamCacheProvider {
+        var stored: String? = null
+        var streamed = 0
+
+        override fun store(key: String, value: String, expiresAfter: Long) {
+            stored = value
+        }
+
+        override fun obtain(key: String) = throw AssertionError("The stream should be obtained")
+
+        override fun obtainStream(key: String) = stored?.let {
+            streamed++
+            ByteArrayInputStream(it.toByteArray())
+        }
+    }
+}
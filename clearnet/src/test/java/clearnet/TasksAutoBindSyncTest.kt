@@ -5,6 +5,7 @@ import org.junit.Before
 import org.junit.Test
 import java.util.concurrent.atomic.AtomicInteger
 import kotlin.test.assertEquals
+import kotlin.test.assertTrue
 
 class TasksAutoBindSyncTest : CoreBlocksTest() {
     private lateinit var core: Core
@@ -58,6 +59,28 @@ class TasksAutoBindSyncTest : CoreBlocksTest() {
         assertEquals(2, successes.get())
     }
 
+    @Test
+    fun finishedTasksLeaveRegistry() {
+        val successes = AtomicInteger()
+
+        val callback = object : RequestCallbackStub<String>() {
+            override fun onSuccess(response: String) {
+                successes.incrementAndGet()
+            }
+        }
+        testRequests.bindableTask(1, callback)
+        testRequests.bindableTask(2, callback)
+        forwardScheduler()
+        forwardScheduler()
+
+        assertEquals(2, successes.get())
+        assertEquals(0, core.tasks.size)
+        assertTrue(core.tasks.snapshot().isEmpty())
+        InvocationBlockType.values().forEach {
+            assertEquals(0, core.tasks.inFlight(it), "Tasks left in $it")
+        }
+    }
+
     @Test
     fun reactive() {
         val successes = AtomicInteger()
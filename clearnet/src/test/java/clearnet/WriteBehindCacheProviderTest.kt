@@ -0,0 +1,130 @@
+package clearnet
+
+import clearnet.WriteBehindCacheProvider.DropPolicy
+import clearnet.interfaces.IBatchCacheProvider
+import org.junit.Before
+import org.junit.Test
+import java.util.*
+import java.util.concurrent.Executor
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class WriteBehindCacheProviderTest {
+    private lateinit var executor: QueueExecutor
+    private lateinit var provider: BatchCacheProvider
+
+    @Before
+    fun setup() {
+        executor = QueueExecutor()
+        provider = BatchCacheProvider()
+    }
+
+    @Test
+    fun writesAreCoalesced() {
+        val cache = WriteBehindCacheProvider(provider, executor = executor)
+        cache.store("a", "1", Long.MAX_VALUE)
+        cache.store("b", "1", Long.MAX_VALUE)
+        cache.store("a", "2", Long.MAX_VALUE)
+        cache.store("c", "1", 0)
+
+        assertEquals("2", cache.obtain("a"))
+        assertNull(cache.obtain("c"))
+        assertEquals(1, executor.tasks.size)
+        assertEquals(0, provider.batches.size)
+
+        executor.runAll()
+
+        assertEquals(listOf(listOf("b" to "1", "a" to "2", "c" to "1")), provider.batches)
+        assertEquals("2", cache.obtain("a"))
+    }
+
+    @Test
+    fun writesDuringWriteAreScheduled() {
+        val cache = WriteBehindCacheProvider(provider, executor = executor)
+        provider.onStore = { cache.store("b", "2", Long.MAX_VALUE) }
+        cache.store("a", "1", Long.MAX_VALUE)
+
+        executor.runAll()
+
+        assertEquals(listOf(listOf("a" to "1"), listOf("b" to "2")), provider.batches)
+    }
+
+    @Test
+    fun backlogIsBounded() {
+        mapOf(DropPolicy.DROP_OLDEST to listOf("c", "a"), DropPolicy.DROP_NEWEST to listOf("b", "a")).forEach { (policy, keys) ->
+            val provider = BatchCacheProvider()
+            val cache = WriteBehindCacheProvider(provider, 2, policy, executor)
+            cache.store("a", "1", Long.MAX_VALUE)
+            cache.store("b", "1", Long.MAX_VALUE)
+            cache.store("c", "1", Long.MAX_VALUE)
+            cache.store("a", "2", Long.MAX_VALUE)
+
+            executor.runAll()
+
+            assertEquals(keys, provider.batches.single().map { it.first }, policy.name)
+            assertEquals(if (policy == DropPolicy.DROP_OLDEST) 2L else 1L, cache.dropped, policy.name)
+        }
+    }
+
+    @Test
+    fun closeWritesPendingValues() {
+        val cache = WriteBehindCacheProvider(provider, executor = executor)
+        cache.store("a", "1", Long.MAX_VALUE)
+        cache.store("b", "1", Long.MAX_VALUE)
+
+        cache.close()
+        assertEquals(listOf(listOf("a" to "1", "b" to "1")), provider.batches)
+
+        cache.store("a", "2", Long.MAX_VALUE)
+        executor.runAll()
+        assertEquals(listOf(listOf("a" to "1", "b" to "1"), listOf("a" to "2")), provider.batches)
+        assertEquals("2", cache.obtain("a"))
+    }
+
+    @Test
+    fun ownWriterIsShutDown() {
+        val cache = WriteBehindCacheProvider(provider)
+        cache.store("a", "1", Long.MAX_VALUE)
+        cache.close()
+
+        assertEquals("1", provider.obtain("a"))
+        assertTrue(waitForWriterExit())
+    }
+
+    private fun waitForWriterExit(): Boolean {
+        val deadline = System.currentTimeMillis() + 5000
+        while (System.currentTimeMillis() < deadline) {
+            if (Thread.getAllStackTraces().keys.none { it.name == "ClearNet cache writer" && it.isAlive }) return true
+            Thread.sleep(10)
+        }
+        return false
+    }
+
+    class QueueExecutor : Executor {
+        val tasks = LinkedList<Runnable>()
+
+        override fun execute(command: Runnable) {
+            tasks += command
+        }
+
+        fun runAll() {
+            while (tasks.isNotEmpty()) tasks.poll().run()
+        }
+    }
+
+    class BatchCacheProvider : IBatchCacheProvider {
+        val batches = ArrayList<List<Pair<String, String>>>()
+        var onStore: () -> Unit = {}
+
+        override fun storeAll(entries: List<IBatchCacheProvider.Entry>) {
+            batches += entries.map { it.key to it.value }
+            onStore()
+            onStore = {}
+        }
+
+        override fun store(key: String, value: String, expiresAfter: Long) = storeAll(listOf(IBatchCacheProvider.Entry(key, value, expiresAfter)))
+
+        override fun obtain(key: String) = batches.flatten().lastOrNull { it.first == key }?.second
+    }
+}
@@ -0,0 +1,12 @@
+package clearnet.help
+
+import clearnet.conversion.checkOuterError
+import clearnet.interfaces.JsonValueConversionStrategy
+import org.json.JSONObject
+
+class InnerValueConversionStrategy : JsonValueConversionStrategy {
+    override fun checkErrorOrResultValue(response: JSONObject): Any? {
+        checkOuterError(response)
+        return response.getJSONObject("result").opt("data")
+    }
+}
@@ -11,7 +11,7 @@ open class TestCoreBlocks(
         private val validator: IBodyValidator = BodyValidatorStub,
         private val cacheProvider: ICacheProvider = CacheProviderStub) {
 
-    private val getFromNetBlock by lazy { GetFromNetBlock(validator, converter) }
+    private val getFromNetBlock by lazy { createGetFromNetBlock(validator, converter) }
     private val getFromCacheBlock by lazy { GetFromCacheBlock(cacheProvider, converter) }
     private val saveToCacheBlock by lazy { SaveToCacheBlock(cacheProvider) }
     private val errorsResolverBlock by lazy {
@@ -32,6 +32,8 @@ open class TestCoreBlocks(
 
     fun getHeadersObserver() = getFromNetBlock.getHeadersObserver()
 
+    protected open fun createGetFromNetBlock(validator: IBodyValidator, converter: ISerializer) = GetFromNetBlock(validator, converter)
+
     protected open fun createErrorsResolverBlock(): IInvocationBlock = EmptyErrorsResolverBlock
 
     protected open fun createAuthTokenBlock(): IInvocationBlock = EmptyAuthTokenBlock
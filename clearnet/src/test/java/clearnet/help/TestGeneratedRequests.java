@@ -0,0 +1,19 @@
+package clearnet.help;
+
+import clearnet.annotations.ConversionStrategy;
+import clearnet.annotations.RPCMethodScope;
+import clearnet.conversion.DefaultConversionStrategy;
+import clearnet.interfaces.RequestCallback;
+
+@RPCMethodScope("generated")
+public interface TestGeneratedRequests {
+    void generatedRequest(RequestCallback<String> callback);
+
+    @ConversionStrategy(NoDefaultConstructorStrategy.class)
+    void brokenStrategyRequest(RequestCallback<String> callback);
+
+    class NoDefaultConstructorStrategy extends DefaultConversionStrategy {
+        public NoDefaultConstructorStrategy(String parameter) {
+        }
+    }
+}
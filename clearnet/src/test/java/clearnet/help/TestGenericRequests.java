@@ -0,0 +1,13 @@
+package clearnet.help;
+
+import clearnet.annotations.Parameter;
+import clearnet.annotations.RPCMethodScope;
+import clearnet.interfaces.RequestCallback;
+
+/**
+ * The generator skips generic interfaces, so it's served by the reflective proxy
+ */
+@RPCMethodScope("generic")
+public interface TestGenericRequests<T> {
+    void genericRequest(@Parameter("value") T value, RequestCallback<String> callback);
+}
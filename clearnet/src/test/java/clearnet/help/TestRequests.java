@@ -12,6 +12,7 @@ import clearnet.conversion.InnerErrorConversionStrategy;
 import clearnet.conversion.InnerResultConversionStrategy;
 import clearnet.interfaces.RequestCallback;
 import io.reactivex.Observable;
+import org.json.JSONObject;
 
 import static clearnet.InvocationStrategy.AUTHORIZED_REQUEST;
 import static clearnet.InvocationStrategy.PRIORITY_CACHE;
@@ -61,6 +62,15 @@ public interface TestRequests {
     @InvocationStrategy(PRIORITY_CACHE)
     void forBatchWithPriorityCache(RequestCallback<String> callback);
 
+    @NotBindable
+    @RPCMethod("test.coalesced")
+    void coalesced(RequestCallback<TestObject> callback);
+
+    @NotBindable
+    @ConversionStrategy(InnerResultConversionStrategy.class)
+    @RPCMethod("test.coalesced")
+    void coalescedInner(RequestCallback<TestObject> callback);
+
     @NotBindable
     @NoBatch
     @RPCMethodScope("test")
@@ -79,6 +89,10 @@ public interface TestRequests {
     @RPCMethodScope("test")
     void priorityCache(RequestCallback<String> requestCallback);
 
+    @InvocationStrategy(PRIORITY_CACHE)
+    @RPCMethodScope("test")
+    void priorityCacheObject(RequestCallback<TestObject> requestCallback);
+
 
 
     // ---- SuccessOrErrorResponsesVariantsTest ----
@@ -93,6 +107,14 @@ public interface TestRequests {
     @RPCMethodScope("test")
     void innerErrorResponse(RequestCallback<TestObject> callback);
 
+    @ConversionStrategy(InnerValueConversionStrategy.class)
+    @RPCMethodScope("test")
+    void innerValueResponse(RequestCallback<TestObject> callback);
+
+    @ConversionStrategy(InnerValueConversionStrategy.class)
+    @RPCMethodScope("test")
+    void innerJsonValueResponse(RequestCallback<JSONObject> callback);
+
 
     // ---- TasksSubscriptionTest ----
     @RPCMethodScope("test")
@@ -2,6 +2,7 @@ package clearnet.android
 
 import android.support.test.InstrumentationRegistry
 import android.support.test.runner.AndroidJUnit4
+import clearnet.interfaces.IBatchCacheProvider
 import junit.framework.TestCase.assertNull
 import org.junit.After
 import org.junit.Assert.assertEquals
@@ -39,6 +40,19 @@ class SqliteCacheProviderTest {
         assertEquals("val2", cacheProvider.obtain("1"))
     }
 
+    @Test
+    fun storeAllTest(){
+        cacheProvider.store("1", "val1", 1000000)
+        cacheProvider.storeAll(listOf(
+                IBatchCacheProvider.Entry("1", "val2", 1000000),
+                IBatchCacheProvider.Entry("2", "val3", 1000000),
+                IBatchCacheProvider.Entry("3", "val4", 0)
+        ))
+        assertEquals("val2", cacheProvider.obtain("1"))
+        assertEquals("val3", cacheProvider.obtain("2"))
+        assertNull(cacheProvider.obtain("3"))
+    }
+
     @Test
     fun expirationTest(){
         cacheProvider.store("1", "val1", 10)
@@ -46,6 +60,52 @@ class SqliteCacheProviderTest {
         assertNull(cacheProvider.obtain("1"))
     }
 
+    @Test
+    fun evictionTest(){
+        val limitedProvider = SqliteCacheProvider(InstrumentationRegistry.getTargetContext(), "test_cache_limited" + System.currentTimeMillis(), 1, maxRows = 2)
+        limitedProvider.store("1", "val1", 1000000)
+        Thread.sleep(2)
+        limitedProvider.store("2", "val2", 1000000)
+        Thread.sleep(2)
+        limitedProvider.store("3", "val3", 1000000)
+        limitedProvider.store("4", "val4", 0)
+        Thread.sleep(2)
+        assertEquals("val1", limitedProvider.obtain("1"))
+
+        limitedProvider.evict()
+
+        assertEquals("val1", limitedProvider.obtain("1"))
+        assertNull(limitedProvider.obtain("2"))
+        assertEquals("val3", limitedProvider.obtain("3"))
+        limitedProvider.clear()
+        limitedProvider.close()
+    }
+
+    @Test
+    fun evictionOfTouchedRowsTest(){
+        val limitedProvider = SqliteCacheProvider(InstrumentationRegistry.getTargetContext(), "test_cache_touched" + System.currentTimeMillis(), 1, maxBytes = 20)
+        val keys = (1..6).map { it.toString() }
+        keys.forEach { limitedProvider.store(it, "val$it", 1000000) }
+        keys.forEach { limitedProvider.obtain(it) }    // all of them get the same access time
+
+        limitedProvider.evict()
+
+        assertEquals(5, keys.count { limitedProvider.obtain(it) != null })
+        limitedProvider.clear()
+        limitedProvider.close()
+    }
+
+    @Test
+    fun closedProviderSkipsWritesTest(){
+        val closedProvider = SqliteCacheProvider(InstrumentationRegistry.getTargetContext(), "test_cache_closed" + System.currentTimeMillis(), 1)
+        closedProvider.store("1", "val1", 1000000)
+        closedProvider.close()
+
+        closedProvider.store("2", "val2", 1000000)
+        closedProvider.storeAll(listOf(IBatchCacheProvider.Entry("3", "val3", 1000000)))
+        assertNull(closedProvider.obtain("1"))
+    }
+
     @Test
     fun clearTest(){
         cacheProvider.store("1", "val1", 1000000)
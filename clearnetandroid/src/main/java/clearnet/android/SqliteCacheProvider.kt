@@ -1,64 +1,277 @@
 package clearnet.android
 
-import android.content.ContentValues
 import android.content.Context
 import android.database.sqlite.SQLiteDatabase
 import android.database.sqlite.SQLiteException
 import android.database.sqlite.SQLiteOpenHelper
-import clearnet.interfaces.ICacheProvider
+import android.database.sqlite.SQLiteStatement
+import clearnet.interfaces.IBatchCacheProvider
+import io.reactivex.Scheduler
+import io.reactivex.disposables.Disposable
+import io.reactivex.schedulers.Schedulers
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
 
-open class SqliteCacheProvider(context: Context?, name: String, version: Int) : SQLiteOpenHelper(context, name, null, version), ICacheProvider {
+/**
+ * The cache is kept within [maxBytes] of the values, approximated by their lengths, and [maxRows], both are unbounded
+ * by default. The expired rows and then the least recently used ones are deleted by [evict], which runs every
+ * [evictionPeriod] on the [scheduler]. The rows are deleted by small chunks, so the lookups don't wait for the whole pass.
+ *
+ * Once the provider is closed the values aren't stored and obtained anymore.
+ */
+open class SqliteCacheProvider @JvmOverloads constructor(
+        context: Context?,
+        name: String,
+        version: Int,
+        private val maxBytes: Long = Long.MAX_VALUE,
+        private val maxRows: Long = Long.MAX_VALUE,
+        private val evictionPeriod: Long = DEFAULT_EVICTION_PERIOD,
+        private val scheduler: Scheduler = Schedulers.io()
+) : SQLiteOpenHelper(context, name, null, version), IBatchCacheProvider {
     companion object {
         private const val T_CACHE = "cache"
         private const val C_KEY = "c_key"
         private const val C_VALUE = "c_value"
         private const val C_EXPIRES = "c_expires"
+        private const val C_ACCESSED = "c_accessed"
+        private const val C_SIZE = "c_size"
+
+        private const val EVICTION_CHUNK = 256
+        private const val MAX_TOUCHED_KEYS = 1024
+
+        const val DEFAULT_EVICTION_PERIOD = 10 * 60 * 1000L
+    }
+
+    // Compiled statements aren't thread safe, so they are used under their own locks
+    @Volatile private var upsert: SQLiteStatement? = null
+    @Volatile private var lookup: SQLiteStatement? = null
+
+    /**
+     * The statements are used under the read lock and closed under the write one
+     */
+    private val closeLock = ReentrantReadWriteLock()
+    private var closed = false
+
+    /**
+     * The keys of the hits since the last eviction, their access time is updated by the eviction
+     * so the lookups don't write
+     */
+    private val touchedKeys = LinkedHashSet<String>()
+    private var eviction: Disposable? = null
+
+    override fun onConfigure(db: SQLiteDatabase) {
+        db.enableWriteAheadLogging()
     }
+
     override fun onCreate(db: SQLiteDatabase) {
-        db.execSQL("CREATE TABLE $T_CACHE ($C_KEY TEXT PRIMARY KEY, $C_VALUE TEXT, $C_EXPIRES INTEGER);")
+        db.execSQL("CREATE TABLE $T_CACHE ($C_KEY TEXT PRIMARY KEY, $C_VALUE TEXT, $C_EXPIRES INTEGER, $C_ACCESSED INTEGER, $C_SIZE INTEGER);")
+        db.execSQL("CREATE INDEX ${T_CACHE}_$C_EXPIRES ON $T_CACHE ($C_EXPIRES);")
+        db.execSQL("CREATE INDEX ${T_CACHE}_$C_ACCESSED ON $T_CACHE ($C_ACCESSED);")
     }
 
     override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
-        db.execSQL("DROP TABLE IF EXISTS $T_CACHE")
-        onCreate(db)
+        recreate(db)
+    }
+
+    override fun onOpen(db: SQLiteDatabase) {
+        super.onOpen(db)
+        if (!db.isReadOnly && !hasColumn(db, C_ACCESSED)) recreate(db)    // the cache of the previous schema
+
+        upsert = db.compileStatement("INSERT OR REPLACE INTO $T_CACHE ($C_KEY, $C_VALUE, $C_EXPIRES, $C_ACCESSED, $C_SIZE) VALUES (?, ?, ?, ?, ?)")
+        lookup = db.compileStatement("SELECT $C_VALUE FROM $T_CACHE WHERE $C_KEY = ? AND $C_EXPIRES > ? LIMIT 1")
+        if (eviction == null) {
+            eviction = scheduler.schedulePeriodicallyDirect(this::evictSafely, evictionPeriod, evictionPeriod, TimeUnit.MILLISECONDS)
+        }
     }
 
     override fun store(key: String, value: String, expiresAfter: Long) {
-        val values = ContentValues(3)
-        values[C_KEY] = key
-        values[C_VALUE] = value
+        closeLock.read {
+            if (closed) return
+            writableDatabase
+            val statement = upsert!!
+            synchronized(statement) {
+                bindUpsert(statement, key, value, expiresAfter).executeInsert()
+            }
+        }
+    }
 
-        var expires = System.currentTimeMillis() + expiresAfter
-        if(expires < expiresAfter) expires = Long.MAX_VALUE
-        values[C_EXPIRES] = expires
-        writableDatabase.insertWithOnConflict(T_CACHE, "", values, SQLiteDatabase.CONFLICT_REPLACE)
+    /**
+     * The statement lock is taken before the transaction, the same order as in [store]
+     */
+    override fun storeAll(entries: List<IBatchCacheProvider.Entry>) {
+        closeLock.read {
+            if (closed) return
+            val db = writableDatabase
+            val statement = upsert!!
+            synchronized(statement) {
+                db.beginTransactionNonExclusive()
+                try {
+                    entries.forEach {
+                        bindUpsert(statement, it.key, it.value, it.expiresAfter).executeInsert()
+                    }
+                    db.setTransactionSuccessful()
+                } finally {
+                    db.endTransaction()
+                }
+            }
+        }
     }
 
     override fun obtain(key: String): String? {
-        try {
-            val cursor = readableDatabase.rawQuery(
-                    "SELECT $C_VALUE FROM $T_CACHE WHERE $C_KEY = ? AND $C_EXPIRES > ${System.currentTimeMillis()} LIMIT 1",
-                    arrayOf(key)
-            )
-
-            cursor.use {
-                return if (cursor.count == 0) {
-                    null
-                } else {
-                    cursor.moveToFirst()
-                    cursor.getString(cursor.getColumnIndex(C_VALUE))
+        return closeLock.read {
+            if (closed) return null
+            try {
+                readableDatabase
+                val statement = lookup ?: return null
+                val value = synchronized(statement) {
+                    statement.bindString(1, key)
+                    statement.bindLong(2, System.currentTimeMillis())
+                    statement.simpleQueryForString()
                 }
+                synchronized(touchedKeys) {
+                    if (touchedKeys.size < MAX_TOUCHED_KEYS) touchedKeys += key
+                }
+                value
+            } catch (e: SQLiteException) {    // including SQLiteDoneException when there is no such row
+                null
             }
-        } catch (e: SQLiteException) {
-            return null
+        }
+    }
+
+    /**
+     * Deletes the expired rows, then the least recently used rows over the budget
+     */
+    fun evict() {
+        val db = writableDatabase
+        val now = System.currentTimeMillis()
+        updateAccessTime(db, now)
+
+        deleteByChunks(db, "$C_EXPIRES <= ?", now)
+
+        val (excessBytes, excessRows) = db.rawQuery("SELECT COALESCE(SUM($C_SIZE), 0), COUNT(*) FROM $T_CACHE", null).use {
+            it.moveToFirst()
+            Pair(it.getLong(0) - maxBytes, it.getLong(1) - maxRows)
+        }
+        if (excessBytes > 0 || excessRows > 0) {
+            val (accessed, rowId) = findEvictionCutoff(db, excessBytes, excessRows) ?: return
+            // the touched rows share the access time, so the row id decides among them
+            deleteByChunks(db, "$C_ACCESSED < ? OR ($C_ACCESSED = ? AND rowid <= ?)", accessed, accessed, rowId)
         }
     }
 
     fun clean(){
-        writableDatabase.execSQL("DELETE FROM $T_CACHE WHERE $C_EXPIRES < ${System.currentTimeMillis()}")
+        deleteByChunks(writableDatabase, "$C_EXPIRES < ?", System.currentTimeMillis())
     }
 
     fun clear(){
         writableDatabase.execSQL("DELETE FROM $T_CACHE")
     }
+
+    /**
+     * Waits for the running reads and writes
+     */
+    override fun close() {
+        closeLock.write {
+            closed = true
+            eviction?.dispose()
+            eviction = null
+            upsert?.close()
+            lookup?.close()
+            upsert = null
+            lookup = null
+            super.close()
+        }
+    }
+
+    private fun evictSafely() {
+        closeLock.read {
+            if (closed) return
+            try {
+                evict()
+            } catch (e: SQLiteException) {
+                // todo log error
+                e.printStackTrace()
+            }
+        }
+    }
+
+    private fun updateAccessTime(db: SQLiteDatabase, now: Long) {
+        val keys = synchronized(touchedKeys) {
+            touchedKeys.toList().also { touchedKeys.clear() }
+        }
+        if (keys.isEmpty()) return
+
+        db.compileStatement("UPDATE $T_CACHE SET $C_ACCESSED = ? WHERE $C_KEY = ?").use { statement ->
+            db.beginTransactionNonExclusive()
+            try {
+                keys.forEach {
+                    statement.bindLong(1, now)
+                    statement.bindString(2, it)
+                    statement.executeUpdateDelete()
+                }
+                db.setTransactionSuccessful()
+            } finally {
+                db.endTransaction()
+            }
+        }
+    }
+
+    /**
+     * @return the access time and the row id of the last row which has to be deleted to fit the budget,
+     * the rows are deleted in the order of the access time and then the row id
+     */
+    private fun findEvictionCutoff(db: SQLiteDatabase, excessBytes: Long, excessRows: Long): Pair<Long, Long>? {
+        var bytes = 0L
+        var rows = 0L
+        var cutoff: Pair<Long, Long>? = null
+        db.rawQuery("SELECT $C_ACCESSED, rowid, $C_SIZE FROM $T_CACHE ORDER BY $C_ACCESSED, rowid", null).use {
+            while (it.moveToNext()) {
+                bytes += it.getLong(2)
+                rows++
+                cutoff = Pair(it.getLong(0), it.getLong(1))
+                if (bytes >= excessBytes && rows >= excessRows) return cutoff
+            }
+        }
+        return cutoff
+    }
+
+    /**
+     * Each chunk is deleted in its own transaction
+     */
+    private fun deleteByChunks(db: SQLiteDatabase, condition: String, vararg arguments: Long) {
+        db.compileStatement(
+                "DELETE FROM $T_CACHE WHERE rowid IN (SELECT rowid FROM $T_CACHE WHERE $condition LIMIT $EVICTION_CHUNK)"
+        ).use { statement ->
+            do {
+                arguments.forEachIndexed { i, argument -> statement.bindLong(i + 1, argument) }
+            } while (statement.executeUpdateDelete() == EVICTION_CHUNK)
+        }
+    }
+
+    private fun recreate(db: SQLiteDatabase) {
+        db.execSQL("DROP TABLE IF EXISTS $T_CACHE")
+        onCreate(db)
+    }
+
+    private fun hasColumn(db: SQLiteDatabase, column: String) = db.rawQuery("PRAGMA table_info($T_CACHE)", null).use {
+        val nameIndex = it.getColumnIndex("name")
+        var found = false
+        while (!found && it.moveToNext()) found = it.getString(nameIndex) == column
+        found
+    }
+
+    private fun bindUpsert(statement: SQLiteStatement, key: String, value: String, expiresAfter: Long): SQLiteStatement {
+        val now = System.currentTimeMillis()
+        var expires = now + expiresAfter
+        if(expires < expiresAfter) expires = Long.MAX_VALUE
+
+        statement.bindString(1, key)
+        statement.bindString(2, value)
+        statement.bindLong(3, expires)
+        statement.bindLong(4, now)
+        statement.bindLong(5, value.length.toLong())
+        return statement
+    }
 }
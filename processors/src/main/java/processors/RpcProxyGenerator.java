@@ -0,0 +1,413 @@
+package processors;
+
+import com.google.auto.service.AutoService;
+import com.squareup.javapoet.AnnotationSpec;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedSourceVersion;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.MirroredTypeException;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+
+import clearnet.annotations.Body;
+import clearnet.annotations.ConversionStrategy;
+import clearnet.annotations.DefaultParameter;
+import clearnet.annotations.DefaultParameters;
+import clearnet.annotations.NotBindable;
+import clearnet.annotations.Parameter;
+import clearnet.annotations.RPCMethod;
+import clearnet.annotations.RPCMethodScope;
+import clearnet.annotations.ResultType;
+
+/**
+ * Generates an implementation for every rpc api interface.
+ * The implementation builds requests with straight-line code and is picked up by clearnet.ExecutorWrapper
+ * instead of the reflective proxy. Interfaces which can't be generated are skipped and stay on the proxy.
+ */
+@AutoService(Processor.class)
+@SupportedSourceVersion(SourceVersion.RELEASE_7)
+public class RpcProxyGenerator extends BaseProcessor {
+    private static final String GENERATED_CLASS_SUFFIX = "_ClearNetImpl";
+    private static final String INVOCATION_STRATEGY_ANNOTATION = "clearnet.annotations.InvocationStrategy";
+    private static final String NO_BATCH_ANNOTATION = "clearnet.annotations.NoBatch";
+    private static final String REQUEST_CALLBACK = "clearnet.interfaces.RequestCallback";
+    private static final String OBSERVABLE = "io.reactivex.Observable";
+
+    private static final ClassName RPC_REQUEST = ClassName.get("clearnet", "RPCRequest");
+    private static final ClassName REQUEST_CALLBACK_TYPE = ClassName.get("clearnet.interfaces", "RequestCallback");
+    private static final ClassName INVOKER = ClassName.get("clearnet", "ExecutorWrapper", "Invoker");
+    private static final ClassName EXECUTOR_WRAPPER = ClassName.get("clearnet", "ExecutorWrapper");
+    private static final ClassName INVOCATION_STRATEGY = ClassName.get("clearnet", "InvocationStrategy");
+    private static final ClassName MERGED_INVOCATION_STRATEGY = ClassName.get("clearnet.model", "MergedInvocationStrategy");
+    private static final ClassName CONVERSION_STRATEGY = ClassName.get("clearnet.interfaces", "ConversionStrategy");
+    private static final ClassName DEFAULT_CONVERSION_STRATEGY = ClassName.get("clearnet.conversion", "DefaultConversionStrategy");
+    private static final ClassName TYPE = ClassName.get("java.lang.reflect", "Type");
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return new HashSet<>(Arrays.asList(
+                RPCMethodScope.class.getCanonicalName(),
+                RPCMethod.class.getCanonicalName()
+        ));
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> set, RoundEnvironment roundEnvironment) {
+        Set<TypeElement> interfaces = new LinkedHashSet<>();
+        for (Element source : roundEnvironment.getElementsAnnotatedWith(RPCMethodScope.class)) {
+            addInterfaceIfHas(source, interfaces);
+        }
+        for (Element source : roundEnvironment.getElementsAnnotatedWith(RPCMethod.class)) {
+            addInterfaceIfHas(source, interfaces);
+        }
+
+        for (TypeElement api : interfaces) {
+            TypeSpec implementation = buildImplementation(api);
+            if (implementation != null) {
+                writeFile(processingEnv.getElementUtils().getPackageOf(api).getQualifiedName().toString(), implementation);
+            }
+        }
+        return false;
+    }
+
+    private void addInterfaceIfHas(Element element, Set<TypeElement> interfaces) {
+        if (element.getKind() == ElementKind.METHOD) element = element.getEnclosingElement();
+        if (element.getKind() == ElementKind.INTERFACE) interfaces.add((TypeElement) element);
+    }
+
+    private TypeSpec buildImplementation(TypeElement api) {
+        if (!api.getTypeParameters().isEmpty()) {
+            warning(api, "Generic api interfaces are not supported by the generator, the reflective proxy will be used");
+            return null;
+        }
+        if (api.getModifiers().contains(Modifier.PRIVATE)) {
+            warning(api, "Private api interfaces are not supported by the generator, the reflective proxy will be used");
+            return null;
+        }
+
+        TypeSpec.Builder builder = TypeSpec.classBuilder(generatedClassName(api))
+                .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+                .addSuperinterface(TypeName.get(api.asType()))
+                .addAnnotation(AnnotationSpec.builder(SuppressWarnings.class).addMember("value", "$S", "unchecked").build())
+                .addField(INVOKER, "invoker", Modifier.PRIVATE, Modifier.FINAL)
+                .addMethod(MethodSpec.constructorBuilder()
+                        .addModifiers(Modifier.PUBLIC)
+                        .addParameter(INVOKER, "invoker")
+                        .addStatement("this.invoker = invoker")
+                        .build());
+
+        RPCMethodScope apiScope = api.getAnnotation(RPCMethodScope.class);
+        List<ExecutableElement> methods = ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(api));
+        int index = 0;
+        for (ExecutableElement method : methods) {
+            if (!method.getModifiers().contains(Modifier.ABSTRACT)) continue;
+            if (!method.getTypeParameters().isEmpty()) {
+                warning(method, "Generic api methods are not supported by the generator, the reflective proxy will be used");
+                return null;
+            }
+            TypeMirror returnType = method.getReturnType();
+            if (returnType.getKind().isPrimitive()) {
+                warning(method, "Api methods can't return primitives, the reflective proxy will be used");
+                return null;
+            }
+            addMethod(builder, api, method, apiScope == null ? null : apiScope.value(), index++);
+        }
+
+        return builder.build();
+    }
+
+    private void addMethod(TypeSpec.Builder typeBuilder, TypeElement api, ExecutableElement method, String apiScope, int index) {
+        MethodSpec.Builder builder = MethodSpec.methodBuilder(method.getSimpleName().toString())
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(TypeName.get(method.getReturnType()));
+
+        List<? extends VariableElement> parameters = method.getParameters();
+        for (int i = 0; i < parameters.size(); i++) {
+            builder.addParameter(ParameterSpec.builder(TypeName.get(parameters.get(i).asType()), "p" + i).build());
+        }
+        for (TypeMirror thrown : method.getThrownTypes()) {
+            builder.addException(TypeName.get(thrown));
+        }
+
+        CodeBlock body = buildMethodBody(typeBuilder, api, method, apiScope, index);
+        typeBuilder.addMethod(builder.addCode(body).build());
+    }
+
+    /**
+     * Repeats the flow of ExecutorWrapper.ApiInvocationHandler. Invalid declarations throw the same exceptions on invocation.
+     * The callbacks are checked by the arguments as the proxy does, the metadata which needs reflection is resolved
+     * on the first call, so its errors come from the call as well.
+     */
+    private CodeBlock buildMethodBody(TypeSpec.Builder typeBuilder, TypeElement api, ExecutableElement method, String apiScope, int index) {
+        String name = method.getSimpleName().toString();
+        CodeBlock.Builder body = CodeBlock.builder();
+
+        String remoteMethod = retrieveRemoteMethod(method, apiScope);
+        if (remoteMethod == null) {
+            return throwing("Method " + name + " must be annotated with @" + RPCMethod.class.getName() + " or @" + RPCMethodScope.class.getName() + " annotation");
+        }
+        body.addStatement("$T request = new $T($S)", RPC_REQUEST, RPC_REQUEST, remoteMethod);
+
+        DefaultParameter defaultParameter = method.getAnnotation(DefaultParameter.class);
+        DefaultParameters defaultParameters = method.getAnnotation(DefaultParameters.class);
+        if (defaultParameter != null && defaultParameters != null) {
+            return throwing("Method " + name + " must have either DefaultParameter annotation or DefaultParameters but not both");
+        }
+        for (DefaultParameter parameter : defaultParameter == null ? (defaultParameters == null ? new DefaultParameter[0] : defaultParameters.value()) : new DefaultParameter[]{defaultParameter}) {
+            body.addStatement("request.addParameter($S, $S)", parameter.key(), parameter.value());
+        }
+
+        List<? extends VariableElement> parameters = method.getParameters();
+        int callbackIndex = -1;
+        for (int i = 0; i < parameters.size(); i++) {
+            VariableElement parameter = parameters.get(i);
+            boolean bound = false;
+            for (AnnotationMirror annotation : parameter.getAnnotationMirrors()) {
+                String annotationName = qualifiedName(annotation);
+                if (annotationName.equals(Parameter.class.getCanonicalName())) {
+                    body.addStatement("request.addParameter($S, p$L)", parameter.getAnnotation(Parameter.class).value(), i);
+                    bound = true;
+                } else if (annotationName.equals(Body.class.getCanonicalName())) {
+                    body.addStatement("request.setParamsBody(p$L)", i);
+                    bound = true;
+                }
+            }
+
+            if (bound) continue;
+
+            String message = "All parameters in method " + name + " must have the Parameter annotation";
+            if (parameter.asType().getKind().isPrimitive()) return throwing(message);
+            body.beginControlFlow("if (!((Object) p$L instanceof $T))", i, REQUEST_CALLBACK_TYPE)
+                    .addStatement("throw new $T($S)", IllegalArgumentException.class, message)
+                    .endControlFlow();
+            callbackIndex = i;
+        }
+
+        boolean returnsObservable = processingEnv.getTypeUtils().erasure(method.getReturnType()).toString().equals(OBSERVABLE);
+
+        String strategyField = "INVOCATION_STRATEGY_" + index;
+
+        AnnotationMirror invocationStrategy = findAnnotation(method, INVOCATION_STRATEGY_ANNOTATION);
+        List<String> strategies = new ArrayList<>();
+        long expiresAfter = 0;
+        if (invocationStrategy != null) {
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : processingEnv.getElementUtils().getElementValuesWithDefaults(invocationStrategy).entrySet()) {
+                String key = entry.getKey().getSimpleName().toString();
+                if (key.equals("value")) {
+                    for (Object value : valueAsList(entry.getValue())) {
+                        strategies.add(((VariableElement) ((AnnotationValue) value).getValue()).getSimpleName().toString());
+                    }
+                } else if (key.equals("cacheExpiresAfter")) {
+                    expiresAfter = ((Number) entry.getValue().getValue()).longValue();
+                }
+            }
+        }
+        if (strategies.isEmpty()) strategies.add("NO_CACHE");
+
+        CodeBlock.Builder strategyInitializer = CodeBlock.builder().add("new $T(new $T[]{", MERGED_INVOCATION_STRATEGY, INVOCATION_STRATEGY);
+        for (int i = 0; i < strategies.size(); i++) {
+            strategyInitializer.add(i == 0 ? "$T.$L" : ", $T.$L", INVOCATION_STRATEGY, strategies.get(i));
+        }
+        typeBuilder.addField(FieldSpec.builder(MERGED_INVOCATION_STRATEGY, strategyField, Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer(strategyInitializer.add("})").build())
+                .build());
+
+        CodeBlock callback;
+        if (callbackIndex < 0) {
+            callback = CodeBlock.of("null");
+        } else if (isSubtypeOf(parameters.get(callbackIndex).asType(), REQUEST_CALLBACK)) {
+            callback = CodeBlock.of("p$L", callbackIndex);
+        } else {
+            callback = CodeBlock.of("($T) (Object) p$L", REQUEST_CALLBACK_TYPE, callbackIndex);
+        }
+
+        CodeBlock invocation = CodeBlock.of("invoker.execute(request, $L, $L.copy(), $LL, $L, $L, $L, $L, $L)",
+                resultType(typeBuilder, api, method, callbackIndex, returnsObservable, index),
+                strategyField,
+                expiresAfter,
+                conversionStrategy(typeBuilder, method, index),
+                method.getAnnotation(NotBindable.class) == null,
+                findAnnotation(method, NO_BATCH_ANNOTATION) == null,
+                callback,
+                returnsObservable
+        );
+
+        if (method.getReturnType().getKind() == TypeKind.VOID) {
+            body.addStatement("$L", invocation);
+        } else if (returnsObservable) {
+            body.addStatement("return ($T) $L", TypeName.get(method.getReturnType()), invocation);
+        } else {
+            body.addStatement("$L", invocation);
+            body.addStatement("return null");
+        }
+        return body.build();
+    }
+
+    private String retrieveRemoteMethod(ExecutableElement method, String apiScope) {
+        RPCMethod methodAnnotation = method.getAnnotation(RPCMethod.class);
+        if (methodAnnotation != null) return methodAnnotation.value();
+
+        RPCMethodScope scopeAnnotation = method.getAnnotation(RPCMethodScope.class);
+        String scope = scopeAnnotation == null ? apiScope : scopeAnnotation.value();
+        if (scope == null) return null;
+
+        String name = method.getSimpleName().toString();
+        return scope.isEmpty() ? name : scope + "." + name;
+    }
+
+    /**
+     * The result type of a method with a callback or an observable is looked up by reflection on the first call
+     */
+    private CodeBlock resultType(TypeSpec.Builder typeBuilder, TypeElement api, ExecutableElement method, int callbackIndex, boolean returnsObservable, int index) {
+        if (callbackIndex >= 0 || returnsObservable) {
+            CodeBlock.Builder parameterTypes = CodeBlock.builder().add("new $T[]{", Class.class);
+            List<? extends VariableElement> parameters = method.getParameters();
+            for (int i = 0; i < parameters.size(); i++) {
+                parameterTypes.add(i == 0 ? "$T.class" : ", $T.class", TypeName.get(processingEnv.getTypeUtils().erasure(parameters.get(i).asType())));
+            }
+            return lazyStaticValue(typeBuilder, TYPE, "resultType" + index, CodeBlock.of("$T.resultType($T.class, $S, $L, $L)",
+                    EXECUTOR_WRAPPER,
+                    TypeName.get(processingEnv.getTypeUtils().erasure(api.asType())),
+                    method.getSimpleName().toString(),
+                    parameterTypes.add("}").build(),
+                    callbackIndex
+            ));
+        }
+
+        ResultType annotation = method.getAnnotation(ResultType.class);
+        if (annotation != null) {
+            return CodeBlock.of("$T.class", classLiteralType(annotation));
+        }
+
+        return CodeBlock.of("$T.class", Object.class);
+    }
+
+    /**
+     * The custom conversion strategy is instantiated on the first call
+     */
+    private CodeBlock conversionStrategy(TypeSpec.Builder typeBuilder, ExecutableElement method, int index) {
+        ConversionStrategy annotation = method.getAnnotation(ConversionStrategy.class);
+        if (annotation == null) {
+            String field = "CONVERSION_STRATEGY_" + index;
+            typeBuilder.addField(FieldSpec.builder(CONVERSION_STRATEGY, field, Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                    .initializer("new $T()", DEFAULT_CONVERSION_STRATEGY)
+                    .build());
+            return CodeBlock.of("$L", field);
+        }
+
+        return lazyStaticValue(typeBuilder, CONVERSION_STRATEGY, "conversionStrategy" + index, CodeBlock.of("$T.conversionStrategy($T.class, $S)",
+                EXECUTOR_WRAPPER,
+                classLiteralType(annotation),
+                annotation.parameter()
+        ));
+    }
+
+    /**
+     * Adds the static field with the getter which initializes it. A failed initialization is repeated on the next call.
+     * Concurrent calls may initialize the value twice, the values are equivalent.
+     *
+     * @return the call of the getter
+     */
+    private CodeBlock lazyStaticValue(TypeSpec.Builder typeBuilder, TypeName type, String name, CodeBlock initializer) {
+        typeBuilder.addField(FieldSpec.builder(type, name, Modifier.PRIVATE, Modifier.STATIC, Modifier.VOLATILE).build());
+        typeBuilder.addMethod(MethodSpec.methodBuilder(name)
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC)
+                .returns(type)
+                .addStatement("$T result = $L", type, name)
+                .beginControlFlow("if (result == null)")
+                .addStatement("result = $L", initializer)
+                .addStatement("$L = result", name)
+                .endControlFlow()
+                .addStatement("return result")
+                .build());
+        return CodeBlock.of("$L()", name);
+    }
+
+    // solution from https://stackoverflow.com/questions/7687829/java-6-annotation-processing-getting-a-class-from-an-annotation
+    private TypeName classLiteralType(ResultType annotation) {
+        try {
+            return TypeName.get(annotation.value());
+        } catch (MirroredTypeException mte) {
+            return TypeName.get(processingEnv.getTypeUtils().erasure(mte.getTypeMirror()));
+        }
+    }
+
+    private TypeName classLiteralType(ConversionStrategy annotation) {
+        try {
+            return TypeName.get(annotation.value());
+        } catch (MirroredTypeException mte) {
+            return TypeName.get(processingEnv.getTypeUtils().erasure(mte.getTypeMirror()));
+        }
+    }
+
+    private CodeBlock throwing(String message) {
+        return CodeBlock.builder().addStatement("throw new $T($S)", IllegalArgumentException.class, message).build();
+    }
+
+    private AnnotationMirror findAnnotation(Element element, String name) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            if (qualifiedName(annotation).equals(name)) return annotation;
+        }
+        return null;
+    }
+
+    private String qualifiedName(AnnotationMirror annotation) {
+        return ((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object> valueAsList(AnnotationValue value) {
+        Object result = value.getValue();
+        if (result instanceof List) return (List<Object>) result;
+        List<Object> single = new ArrayList<>();
+        single.add(value);
+        return single;
+    }
+
+    private boolean isSubtypeOf(TypeMirror type, String className) {
+        TypeElement element = processingEnv.getElementUtils().getTypeElement(className);
+        if (element == null || !(type instanceof DeclaredType)) return false;
+        return processingEnv.getTypeUtils().isAssignable(
+                processingEnv.getTypeUtils().erasure(type),
+                processingEnv.getTypeUtils().erasure(element.asType())
+        );
+    }
+
+    private String generatedClassName(TypeElement api) {
+        StringBuilder result = new StringBuilder(api.getSimpleName());
+        Element enclosing = api.getEnclosingElement();
+        while (enclosing instanceof TypeElement) {
+            result.insert(0, enclosing.getSimpleName() + "_");
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return result.append(GENERATED_CLASS_SUFFIX).toString();
+    }
+}
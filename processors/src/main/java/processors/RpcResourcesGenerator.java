@@ -71,7 +71,7 @@ public class RpcResourcesGenerator extends BaseProcessor {
 
         writeResourcesFile(tree);
         writeSubscriberClass(tree);
-        return true;
+        return false;   // not claimed: RpcProxyGenerator reads the same annotations and the order of processors is not defined
     }
 
     private void addMethodIfHas(Element element, Map<String, Set<NameTypePair>> tree, String scope) {
@@ -0,0 +1,144 @@
+package processors;
+
+import com.google.testing.compile.Compilation;
+import com.google.testing.compile.JavaFileObjects;
+
+import org.junit.Test;
+
+import javax.tools.JavaFileObject;
+
+import static com.google.testing.compile.CompilationSubject.assertThat;
+import static com.google.testing.compile.Compiler.javac;
+import static org.junit.Assert.assertTrue;
+
+public class RpcProxyGeneratorTest {
+
+    @Test
+    public void generatesImplementation() {
+        Compilation compilation = compile(JavaFileObjects.forSourceLines("test.Api",
+                "package test;",
+                "",
+                "import clearnet.annotations.ConversionStrategy;",
+                "import clearnet.annotations.InvocationStrategy;",
+                "import clearnet.annotations.NotBindable;",
+                "import clearnet.annotations.Parameter;",
+                "import clearnet.annotations.RPCMethodScope;",
+                "import clearnet.conversion.DefaultConversionStrategy;",
+                "import clearnet.interfaces.RequestCallback;",
+                "",
+                "@RPCMethodScope(\"api\")",
+                "public interface Api {",
+                "    @NotBindable",
+                "    @InvocationStrategy(value = clearnet.InvocationStrategy.PRIORITY_CACHE, cacheExpiresAfter = 100)",
+                "    @ConversionStrategy(value = DefaultConversionStrategy.class, parameter = \"data\")",
+                "    void request(@Parameter(\"id\") int id, RequestCallback<String> callback);",
+                "}"
+        ));
+
+        assertThat(compilation).succeeded();
+        assertThat(compilation).generatedSourceFile("test.Api_ClearNetImpl").hasSourceEquivalentTo(JavaFileObjects.forSourceLines("test.Api_ClearNetImpl",
+                "package test;",
+                "",
+                "import clearnet.ExecutorWrapper;",
+                "import clearnet.InvocationStrategy;",
+                "import clearnet.RPCRequest;",
+                "import clearnet.conversion.DefaultConversionStrategy;",
+                "import clearnet.interfaces.ConversionStrategy;",
+                "import clearnet.interfaces.RequestCallback;",
+                "import clearnet.model.MergedInvocationStrategy;",
+                "import java.lang.Class;",
+                "import java.lang.IllegalArgumentException;",
+                "import java.lang.Override;",
+                "import java.lang.String;",
+                "import java.lang.SuppressWarnings;",
+                "import java.lang.reflect.Type;",
+                "",
+                "@SuppressWarnings(\"unchecked\")",
+                "public final class Api_ClearNetImpl implements Api {",
+                "    private static final MergedInvocationStrategy INVOCATION_STRATEGY_0 = new MergedInvocationStrategy(new InvocationStrategy[]{InvocationStrategy.PRIORITY_CACHE});",
+                "",
+                "    private static volatile Type resultType0;",
+                "",
+                "    private static volatile ConversionStrategy conversionStrategy0;",
+                "",
+                "    private final ExecutorWrapper.Invoker invoker;",
+                "",
+                "    public Api_ClearNetImpl(ExecutorWrapper.Invoker invoker) {",
+                "        this.invoker = invoker;",
+                "    }",
+                "",
+                "    private static Type resultType0() {",
+                "        Type result = resultType0;",
+                "        if (result == null) {",
+                "            result = ExecutorWrapper.resultType(Api.class, \"request\", new Class[]{int.class, RequestCallback.class}, 1);",
+                "            resultType0 = result;",
+                "        }",
+                "        return result;",
+                "    }",
+                "",
+                "    private static ConversionStrategy conversionStrategy0() {",
+                "        ConversionStrategy result = conversionStrategy0;",
+                "        if (result == null) {",
+                "            result = ExecutorWrapper.conversionStrategy(DefaultConversionStrategy.class, \"data\");",
+                "            conversionStrategy0 = result;",
+                "        }",
+                "        return result;",
+                "    }",
+                "",
+                "    @Override",
+                "    public void request(int p0, RequestCallback<String> p1) {",
+                "        RPCRequest request = new RPCRequest(\"api.request\");",
+                "        request.addParameter(\"id\", p0);",
+                "        if (!((Object) p1 instanceof RequestCallback)) {",
+                "            throw new IllegalArgumentException(\"All parameters in method request must have the Parameter annotation\");",
+                "        }",
+                "        invoker.execute(request, resultType0(), INVOCATION_STRATEGY_0.copy(), 100L, conversionStrategy0(), false, true, p1, false);",
+                "    }",
+                "}"
+        ));
+    }
+
+    @Test
+    public void invalidDeclarationThrowsOnCall() {
+        Compilation compilation = compile(JavaFileObjects.forSourceLines("test.Api",
+                "package test;",
+                "",
+                "import clearnet.annotations.RPCMethodScope;",
+                "",
+                "@RPCMethodScope(\"api\")",
+                "public interface Api {",
+                "    void request(int id);",
+                "}"
+        ));
+
+        assertThat(compilation).succeeded();
+        assertThat(compilation).generatedSourceFile("test.Api_ClearNetImpl").contentsAsUtf8String()
+                .contains("throw new IllegalArgumentException(\"All parameters in method request must have the Parameter annotation\");");
+    }
+
+    @Test
+    public void genericInterfacesAreSkipped() {
+        Compilation compilation = compile(JavaFileObjects.forSourceLines("test.Api",
+                "package test;",
+                "",
+                "import clearnet.annotations.Parameter;",
+                "import clearnet.annotations.RPCMethodScope;",
+                "import clearnet.interfaces.RequestCallback;",
+                "",
+                "@RPCMethodScope(\"api\")",
+                "public interface Api<T> {",
+                "    void request(@Parameter(\"value\") T value, RequestCallback<String> callback);",
+                "}"
+        ));
+
+        assertThat(compilation).succeeded();
+        assertThat(compilation).hadWarningContaining("Generic api interfaces are not supported by the generator");
+        for (JavaFileObject file : compilation.generatedSourceFiles()) {
+            assertTrue(file.getName(), !file.getName().endsWith("_ClearNetImpl.java"));
+        }
+    }
+
+    private Compilation compile(JavaFileObject source) {
+        return javac().withProcessors(new RpcProxyGenerator()).compile(source);
+    }
+}